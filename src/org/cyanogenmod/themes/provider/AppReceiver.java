@@ -19,10 +19,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.Uri;
 import android.util.Log;
-import org.cyanogenmod.themes.provider.util.ProviderUtils;
 
 public class AppReceiver extends BroadcastReceiver {
     public final static String TAG = AppReceiver.class.getName();
@@ -30,41 +28,30 @@ public class AppReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         final Uri uri = intent.getData();
-        final String pkgName = uri != null ? uri.getSchemeSpecificPart() : null;
-        final boolean isReplacing = intent.getExtras().getBoolean(Intent.EXTRA_REPLACING, false);
+        final boolean isReplacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
         final String action = intent.getAction();
-        try {
-            // All themes/icon packs go to the theme service for processing now so assume
-            // isProcessing is always true when installing/replacing
-            if (Intent.ACTION_PACKAGE_ADDED.equals(action) && !isReplacing
-                    && !ProviderUtils.themeExistsInProvider(context, pkgName)) {
-                ThemePackageHelper.insertPackage(context, pkgName, true);
-            } else if (Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(action)) {
-                ThemePackageHelper.removePackage(context, pkgName);
-            } else if (Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
-                if (ProviderUtils.themeExistsInProvider(context, pkgName)) {
-                    ThemePackageHelper.updatePackage(context, pkgName, true);
-                } else {
-                    // Edge case where app was not a theme in previous install
-                    ThemePackageHelper.insertPackage(context, pkgName, true);
-                }
-            } else if (Intent.ACTION_THEME_RESOURCES_CACHED.equals(action)) {
-                final String themePkgName = intent.getStringExtra(Intent.EXTRA_THEME_PACKAGE_NAME);
-                final int result = intent.getIntExtra(Intent.EXTRA_THEME_RESULT,
-                        PackageManager.INSTALL_FAILED_THEME_UNKNOWN_ERROR);
-                if (result == 0) {
-                    if (ProviderUtils.themeExistsInProvider(context, themePkgName)) {
-                        ThemePackageHelper.updatePackage(context, themePkgName, false);
-                    } else {
-                        // Edge case where app was not a theme in previous install
-                        ThemePackageHelper.insertPackage(context, themePkgName, false);
-                    }
-                } else {
-                    Log.e(TAG, "Unable to update theme " + themePkgName + ", result=" + result);
-                }
+        String pkgName = uri != null ? uri.getSchemeSpecificPart() : null;
+        int event = 0;
+        if (Intent.ACTION_PACKAGE_ADDED.equals(action) && !isReplacing) {
+            event = PackageEventQueue.EVENT_ADDED;
+        } else if (Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(action)) {
+            event = PackageEventQueue.EVENT_REMOVED;
+        } else if (Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+            event = PackageEventQueue.EVENT_REPLACED;
+        } else if (Intent.ACTION_THEME_RESOURCES_CACHED.equals(action)) {
+            pkgName = intent.getStringExtra(Intent.EXTRA_THEME_PACKAGE_NAME);
+            final int result = intent.getIntExtra(Intent.EXTRA_THEME_RESULT,
+                    PackageManager.INSTALL_FAILED_THEME_UNKNOWN_ERROR);
+            if (result == 0) {
+                event = PackageEventQueue.EVENT_RESOURCES_CACHED;
+            } else {
+                Log.e(TAG, "Unable to update theme " + pkgName + ", result=" + result);
             }
-        } catch(NameNotFoundException e) {
-            Log.e(TAG, "Unable to add package to theme's provider ", e);
+        }
+
+        // The provider work is done off the main thread, keep the broadcast alive until then
+        if (event != 0 && pkgName != null) {
+            PackageEventQueue.getInstance(context).enqueue(pkgName, event, goAsync());
         }
     }
 }
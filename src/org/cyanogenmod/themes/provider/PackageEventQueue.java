@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.content.BroadcastReceiver.PendingResult;
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import cyanogenmod.providers.ThemesContract;
+import cyanogenmod.providers.ThemesContract.ThemesColumns.InstallState;
+
+import org.cyanogenmod.themes.provider.util.ProviderUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes the package events received by {@link AppReceiver} onto a background thread.
+ * Events for a package that arrive while an earlier event for it is still waiting in the queue
+ * are merged so that, i.e. PACKAGE_ADDED followed by THEME_RESOURCES_CACHED, only results in the
+ * provider work for the final state of the package.
+ *
+ * When events arrive faster than {@link #BATCH_MODE_THRESHOLD} per
+ * {@link #BATCH_MODE_WINDOW_MS}, such as during a restore or first boot, the queue switches to
+ * batch mode.  Events are then written to the provider's package journal and applied together
+ * in a single transaction once the burst settles.
+ */
+public class PackageEventQueue {
+    private static final String TAG = PackageEventQueue.class.getSimpleName();
+
+    public static final int EVENT_ADDED = 1;
+    public static final int EVENT_REPLACED = 2;
+    public static final int EVENT_RESOURCES_CACHED = 3;
+    public static final int EVENT_REMOVED = 4;
+
+    // How long an event waits for further events for the same package before it is applied
+    private static final long COALESCE_DELAY_MS = 200;
+    // Broadcasts are finished after this long even if their event has not been applied yet so
+    // that a long queue can not cause the receiver to ANR
+    private static final long MAX_BROADCAST_HOLD_MS = 8000;
+
+    // Number of events within BATCH_MODE_WINDOW_MS that switches the queue to batch mode
+    private static final int BATCH_MODE_THRESHOLD = 8;
+    private static final long BATCH_MODE_WINDOW_MS = 5000;
+    // How long the journal waits for further events before being applied
+    private static final long BATCH_IDLE_MS = 2000;
+    // Upper bound on how long journaled events can wait before being applied
+    private static final long MAX_BATCH_DELAY_MS = 30000;
+
+    private static final Uri PROVIDER_URI = Uri.parse("content://" + ThemesContract.AUTHORITY);
+
+    private static PackageEventQueue sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final Map<String, PackageEvent> mPendingEvents =
+            new LinkedHashMap<String, PackageEvent>();
+    private final ArrayDeque<Long> mRecentEventTimes = new ArrayDeque<Long>();
+    private boolean mBatchMode;
+    private long mBatchStartTime;
+
+    private final Runnable mApplyJournalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyJournal();
+        }
+    };
+
+    // Stats
+    private int mEventsReceived;
+    private int mEventsApplied;
+    private int mMaxQueueDepth;
+    private int mEventsJournaled;
+    private int mBatchesApplied;
+
+    public static synchronized PackageEventQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PackageEventQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PackageEventQueue(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Queues an event for the given package.
+     * @param result The pending result of the broadcast that delivered the event, which is
+     *               finished once the event has been applied.  May be null.
+     */
+    public void enqueue(final String pkgName, int event, PendingResult result) {
+        final AsyncResult asyncResult = result != null ? new AsyncResult(result) : null;
+        if (asyncResult != null) {
+            mMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    asyncResult.finish();
+                }
+            }, MAX_BROADCAST_HOLD_MS);
+        }
+        synchronized (mPendingEvents) {
+            mEventsReceived++;
+            if (updateBatchMode()) {
+                journalEvent(pkgName, event, asyncResult);
+                return;
+            }
+            PackageEvent pending = mPendingEvents.get(pkgName);
+            if (pending == null) {
+                pending = new PackageEvent(pkgName);
+                mPendingEvents.put(pkgName, pending);
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, mPendingEvents.size());
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        processEvent(pkgName);
+                    }
+                }, COALESCE_DELAY_MS);
+            }
+            pending.merge(event);
+            if (asyncResult != null) {
+                pending.results.add(asyncResult);
+            }
+        }
+    }
+
+    private void processEvent(String pkgName) {
+        PackageEvent event;
+        synchronized (mPendingEvents) {
+            event = mPendingEvents.remove(pkgName);
+            if (event == null) return;
+            mEventsApplied++;
+        }
+        try {
+            applyEvent(new SyncContext(mContext), event);
+        } catch (NameNotFoundException e) {
+            Log.e(TAG, "Unable to add package to theme's provider ", e);
+        } finally {
+            for (AsyncResult result : event.results) {
+                result.finish();
+            }
+        }
+    }
+
+    /**
+     * Records the time of a new event and enters batch mode if the event rate is over the
+     * threshold.  Must be called with mPendingEvents held.
+     * @return True if the queue is in batch mode
+     */
+    private boolean updateBatchMode() {
+        final long now = SystemClock.uptimeMillis();
+        mRecentEventTimes.addLast(now);
+        while (mRecentEventTimes.peekFirst() < now - BATCH_MODE_WINDOW_MS) {
+            mRecentEventTimes.removeFirst();
+        }
+        if (!mBatchMode && mRecentEventTimes.size() >= BATCH_MODE_THRESHOLD) {
+            Log.i(TAG, "Entering batch mode");
+            mBatchMode = true;
+            mBatchStartTime = now;
+        }
+        if (mBatchMode) {
+            mHandler.removeCallbacks(mApplyJournalRunnable);
+            mHandler.postAtTime(mApplyJournalRunnable,
+                    Math.min(now + BATCH_IDLE_MS, mBatchStartTime + MAX_BATCH_DELAY_MS));
+        }
+        return mBatchMode;
+    }
+
+    /**
+     * Writes the event to the package journal.  The broadcast is finished once the event is
+     * durable since it will be applied even if the process dies before the batch is.  If it
+     * can not be journaled the event is applied right away instead.
+     */
+    private void journalEvent(final String pkgName, final int event,
+            final AsyncResult asyncResult) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bundle extras = new Bundle();
+                extras.putInt(ThemesProvider.EXTRA_PACKAGE_EVENT, event);
+                try {
+                    mContext.getContentResolver().call(PROVIDER_URI,
+                            ThemesProvider.METHOD_JOURNAL_PACKAGE_EVENT, pkgName, extras);
+                    synchronized (mPendingEvents) {
+                        mEventsJournaled++;
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to journal event for " + pkgName + ", applying it", e);
+                    applyDirectly(pkgName, event);
+                } finally {
+                    if (asyncResult != null) asyncResult.finish();
+                }
+            }
+        });
+    }
+
+    private void applyDirectly(String pkgName, int event) {
+        PackageEvent packageEvent = new PackageEvent(pkgName);
+        packageEvent.merge(event);
+        synchronized (mPendingEvents) {
+            mEventsApplied++;
+        }
+        try {
+            applyEvent(new SyncContext(mContext), packageEvent);
+        } catch (NameNotFoundException | RuntimeException e) {
+            Log.e(TAG, "Unable to apply event for " + pkgName, e);
+        }
+    }
+
+    private void applyJournal() {
+        mContext.getContentResolver().call(PROVIDER_URI,
+                ThemesProvider.METHOD_APPLY_PACKAGE_JOURNAL, null, null);
+        synchronized (mPendingEvents) {
+            mBatchesApplied++;
+            // Stay in batch mode while events are still arriving quickly
+            final long now = SystemClock.uptimeMillis();
+            while (!mRecentEventTimes.isEmpty()
+                    && mRecentEventTimes.peekFirst() < now - BATCH_MODE_WINDOW_MS) {
+                mRecentEventTimes.removeFirst();
+            }
+            if (mRecentEventTimes.size() < BATCH_MODE_THRESHOLD) {
+                Log.i(TAG, "Leaving batch mode");
+                mBatchMode = false;
+            } else {
+                mBatchStartTime = now;
+            }
+        }
+    }
+
+    /**
+     * Applies the final state of a possibly coalesced package event to the provider.
+     */
+    static void applyEvent(SyncContext sync, PackageEvent event) throws NameNotFoundException {
+        final Context context = sync.getContext();
+        final String pkgName = event.pkgName;
+        if (event.type == EVENT_REMOVED) {
+            ThemePackageHelper.removePackage(context, pkgName);
+            return;
+        }
+
+        // All themes/icon packs go to the theme service for processing now so assume
+        // isProcessing is always true when installing/replacing
+        final boolean exists = ProviderUtils.themeExistsInProvider(context, pkgName);
+        switch (event.type) {
+            case EVENT_ADDED:
+                // The removal may have been handed to the batcher by an earlier event that
+                // this one was not merged with
+                final boolean removalPending =
+                        ThemeRemovalBatcher.getInstance(context).cancelRemoval(pkgName);
+                if (!exists) {
+                    ThemePackageHelper.insertPackage(sync, pkgName, true);
+                } else if (event.sawRemove || removalPending) {
+                    // Reinstalled before the removal was applied, so the row is for the old APK
+                    ThemePackageHelper.updatePackage(sync, pkgName, true);
+                }
+                break;
+            case EVENT_REPLACED:
+                if (exists) {
+                    ThemePackageHelper.updatePackage(sync, pkgName, true);
+                } else {
+                    // Edge case where app was not a theme in previous install
+                    ThemePackageHelper.insertPackage(sync, pkgName, true);
+                }
+                break;
+            case EVENT_RESOURCES_CACHED:
+                if (exists) {
+                    // If the replace was coalesced away the theme never went into the
+                    // updating state, so make sure it is still treated as an update
+                    ThemePackageHelper.updatePackage(sync, pkgName, false, event.sawReplace
+                            ? InstallState.UPDATING : ThemePackageHelper.CURRENT_INSTALL_STATE);
+                } else {
+                    // Edge case where app was not a theme in previous install
+                    ThemePackageHelper.insertPackage(sync, pkgName, false);
+                    if (event.sawAdd) {
+                        ProviderUtils.sendThemeInstalledBroadcast(context, pkgName);
+                    }
+                }
+                break;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mPendingEvents) {
+            pw.println("PackageEventQueue:");
+            pw.println("  depth=" + mPendingEvents.size() + " maxDepth=" + mMaxQueueDepth
+                    + " received=" + mEventsReceived + " applied=" + mEventsApplied
+                    + " coalescingRatio=" + getCoalescingRatio());
+            pw.println("  batchMode=" + mBatchMode + " journaled=" + mEventsJournaled
+                    + " batchesApplied=" + mBatchesApplied);
+        }
+    }
+
+    public void writeStats(Bundle stats) {
+        synchronized (mPendingEvents) {
+            stats.putInt("package_events_queue_depth", mPendingEvents.size());
+            stats.putInt("package_events_max_queue_depth", mMaxQueueDepth);
+            stats.putInt("package_events_received", mEventsReceived);
+            stats.putInt("package_events_applied", mEventsApplied);
+            stats.putFloat("package_events_coalescing_ratio", getCoalescingRatio());
+            stats.putInt("package_events_journaled", mEventsJournaled);
+            stats.putInt("package_journal_batches_applied", mBatchesApplied);
+        }
+    }
+
+    private float getCoalescingRatio() {
+        return mEventsApplied > 0 ? (float) mEventsReceived / mEventsApplied : 0f;
+    }
+
+    /**
+     * The merged state of all events received for a package that have not been applied yet.
+     */
+    static class PackageEvent {
+        final String pkgName;
+        final List<AsyncResult> results = new ArrayList<AsyncResult>();
+        int type;
+        boolean sawAdd;
+        boolean sawReplace;
+        boolean sawRemove;
+
+        PackageEvent(String pkgName) {
+            this.pkgName = pkgName;
+        }
+
+        void merge(int event) {
+            switch (event) {
+                case EVENT_ADDED:
+                    sawAdd = true;
+                    break;
+                case EVENT_REPLACED:
+                    sawReplace = true;
+                    break;
+                case EVENT_REMOVED:
+                    // Anything before a removal no longer matters
+                    sawAdd = false;
+                    sawReplace = false;
+                    sawRemove = true;
+                    break;
+            }
+            type = event;
+        }
+    }
+
+    /**
+     * Guards against a broadcast being finished twice, by its event being applied and by the
+     * hold timeout.
+     */
+    private static class AsyncResult {
+        private PendingResult mResult;
+
+        AsyncResult(PendingResult result) {
+            mResult = result;
+        }
+
+        synchronized void finish() {
+            if (mResult != null) {
+                mResult.finish();
+                mResult = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import cyanogenmod.providers.ThemesContract.ThemesColumns;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Generates the previews of themes in the preview backlog, a few themes at a time while the
+ * device is idle and charging, so that bulk work such as regenerating every theme after an
+ * upgrade does not compete with the user.  Runs are skipped while the device is hot or while
+ * the {@link PreviewPipeline} is not admitting background work.
+ */
+public class PreviewBackfillService extends JobService implements PreviewPipeline.Callback {
+    private static final String TAG = PreviewBackfillService.class.getSimpleName();
+
+    private static final int JOB_ID = 1;
+    // Themes submitted each time the job runs
+    private static final int BATCH_SIZE = 3;
+    // Battery temperature, in tenths of a degree Celsius, above which the job backs off
+    private static final int MAX_BATTERY_TEMPERATURE = 400;
+
+    // Statistics for the process, guarded by the class
+    private static int sRuns;
+    private static int sThemesSubmitted;
+    private static int sThermalDeferrals;
+    private static int sBusyDeferrals;
+    private static int sStopped;
+    private static long sTotalRunMs;
+    private static long sMaxDeferralMs;
+
+    private Handler mHandler;
+
+    // Only accessed from the main thread
+    private JobParameters mParams;
+    private final Set<String> mOutstandingThemes = new HashSet<String>();
+    private boolean mMoreRemaining;
+    private long mStartTime;
+
+    /**
+     * Schedules the backfill to run the next time the device is idle and charging, unless it
+     * already is.
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, PreviewBackfillService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (isTooHot()) {
+            synchronized (PreviewBackfillService.class) {
+                sThermalDeferrals++;
+            }
+            Log.d(TAG, "Device is too hot, deferring preview backfill");
+            // Jobs that require idle are retried in the next idle window
+            jobFinished(params, true);
+            return true;
+        }
+
+        PreviewPipeline pipeline = PreviewPipeline.getInstance(this);
+        if (!pipeline.admit(BATCH_SIZE - 1)) {
+            synchronized (PreviewBackfillService.class) {
+                sBusyDeferrals++;
+            }
+            Log.d(TAG, "Preview generation is saturated, deferring preview backfill");
+            jobFinished(params, true);
+            return true;
+        }
+
+        Bundle result = getContentResolver().call(ThemesColumns.CONTENT_URI,
+                ThemesProvider.METHOD_TAKE_PREVIEW_BACKLOG, String.valueOf(BATCH_SIZE), null);
+        String[] pkgNames = result != null
+                ? result.getStringArray(ThemesProvider.EXTRA_PKG_NAMES) : null;
+        if (pkgNames == null || pkgNames.length == 0) return false;
+
+        final long now = System.currentTimeMillis();
+        long deferralMs = 0;
+        for (long time : result.getLongArray(ThemesProvider.EXTRA_BACKLOG_TIMES)) {
+            deferralMs = Math.max(deferralMs, now - time);
+        }
+
+        mParams = params;
+        mMoreRemaining = pkgNames.length == BATCH_SIZE;
+        mStartTime = SystemClock.elapsedRealtime();
+        mOutstandingThemes.clear();
+        for (String pkgName : pkgNames) {
+            // Themes already in the pipeline are processed there without us
+            if (pipeline.submit(PreviewGenerationService.ACTION_UPDATE, pkgName, this)) {
+                mOutstandingThemes.add(pkgName);
+            }
+        }
+        synchronized (PreviewBackfillService.class) {
+            sRuns++;
+            sThemesSubmitted += pkgNames.length;
+            sMaxDeferralMs = Math.max(sMaxDeferralMs, deferralMs);
+        }
+        Log.d(TAG, "Backfilling previews for " + pkgNames.length + " themes, deferred up to "
+                + deferralMs + "ms");
+
+        if (mOutstandingThemes.isEmpty()) {
+            finish();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The constraints no longer hold.  Themes already submitted are finished by the
+        // pipeline and the rest of the backlog waits for the next time they do.
+        synchronized (PreviewBackfillService.class) {
+            sStopped++;
+        }
+        Log.d(TAG, "Preview backfill stopped after "
+                + (SystemClock.elapsedRealtime() - mStartTime) + "ms");
+        mParams = null;
+        mOutstandingThemes.clear();
+        return true;
+    }
+
+    @Override
+    public void onThemeProcessed(final String pkgName) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Themes from a batch that was stopped are no longer tracked
+                if (mOutstandingThemes.remove(pkgName) && mOutstandingThemes.isEmpty()
+                        && mParams != null) {
+                    finish();
+                }
+            }
+        });
+    }
+
+    private void finish() {
+        final long runMs = SystemClock.elapsedRealtime() - mStartTime;
+        synchronized (PreviewBackfillService.class) {
+            sTotalRunMs += runMs;
+        }
+        Log.d(TAG, "Preview backfill took " + runMs + "ms"
+                + (mMoreRemaining ? ", more themes remaining" : ""));
+        // A full batch means more of the backlog is left, which waits for the next idle window
+        jobFinished(mParams, mMoreRemaining);
+        mParams = null;
+    }
+
+    private boolean isTooHot() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0)
+                        > MAX_BATTERY_TEMPERATURE;
+    }
+
+    static synchronized void writeStats(Bundle stats) {
+        stats.putInt("preview_backfill_runs", sRuns);
+        stats.putInt("preview_backfill_themes", sThemesSubmitted);
+        stats.putInt("preview_backfill_thermal_deferrals", sThermalDeferrals);
+        stats.putInt("preview_backfill_busy_deferrals", sBusyDeferrals);
+        stats.putInt("preview_backfill_stopped", sStopped);
+        stats.putLong("preview_backfill_run_ms", sTotalRunMs);
+        stats.putLong("preview_backfill_max_deferral_ms", sMaxDeferralMs);
+    }
+
+    static synchronized void dump(PrintWriter pw) {
+        pw.println("PreviewBackfill:");
+        pw.println("  runs=" + sRuns + " themes=" + sThemesSubmitted
+                + " thermalDeferrals=" + sThermalDeferrals + " busyDeferrals=" + sBusyDeferrals
+                + " stopped=" + sStopped + " runMs=" + sTotalRunMs
+                + " maxDeferralMs=" + sMaxDeferralMs);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+
+import org.cyanogenmod.themes.provider.util.PreviewItem;
+
+import java.util.List;
+
+/**
+ * Produces the previews of one or more theme components.  Generators are registered with
+ * {@link PreviewGenerators}, and the pipeline plans its work from what they declare here
+ * alone, so a new type of preview only needs a generator and its registration.
+ *
+ * Generators hold no state of their own and may run for several themes at once, either in the
+ * provider's process or in a renderer process.
+ */
+public interface PreviewGenerator {
+    /**
+     * @return Unique name, under which the generator's work, failures and metrics are tracked
+     */
+    String getName();
+
+    /**
+     * @return MODIFIES_* columns of the components previewed.  The generator runs for themes
+     *         that modify any of them.
+     */
+    String[] getCapabilities();
+
+    /**
+     * @return Paths within the theme's APK of the files or directories the previews are built
+     *         from.  Their entries are fingerprinted, and the generator is skipped for an update
+     *         that leaves all of them unchanged.
+     */
+    String[] getAssetPaths();
+
+    /**
+     * @return Preview keys produced.  A theme's previews for these keys are replaced whenever
+     *         the generator runs for it.
+     */
+    String[] getPreviewKeys();
+
+    /**
+     * @return Rough time the generator takes, used to plan work until its actual time has been
+     *         measured
+     */
+    long getEstimatedCostMs();
+
+    /**
+     * @return How long the generator may run before it is cancelled
+     */
+    long getDeadlineMs();
+
+    /**
+     * @param info The theme's package info, null for the system theme
+     * @param themeContext Context for the theme's package, null for the system theme
+     * @param out Receives the generated previews
+     */
+    void generate(Context context, String pkgName, PackageInfo info, Context themeContext,
+            List<PreviewItem> out) throws Exception;
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.graphics.Bitmap;
+
+import cyanogenmod.providers.ThemesContract.PreviewColumns;
+import cyanogenmod.providers.ThemesContract.ThemesColumns;
+
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewsTable;
+import org.cyanogenmod.themes.provider.util.BootAnimationPreviewGenerator;
+import org.cyanogenmod.themes.provider.util.IconPreviewGenerator;
+import org.cyanogenmod.themes.provider.util.IconPreviewGenerator.IconItems;
+import org.cyanogenmod.themes.provider.util.LiveLockScreenPreviewGenerator;
+import org.cyanogenmod.themes.provider.util.LiveLockScreenPreviewGenerator.LiveLockScreenItems;
+import org.cyanogenmod.themes.provider.util.PreviewItem;
+import org.cyanogenmod.themes.provider.util.StylePreviewGenerator;
+import org.cyanogenmod.themes.provider.util.StylePreviewGenerator.StyleItems;
+import org.cyanogenmod.themes.provider.util.SystemUiPreviewGenerator;
+import org.cyanogenmod.themes.provider.util.SystemUiPreviewGenerator.SystemUiItems;
+import org.cyanogenmod.themes.provider.util.WallpaperPreviewGenerator;
+import org.cyanogenmod.themes.provider.util.WallpaperPreviewGenerator.WallpaperItem;
+import org.cyanogenmod.themes.provider.util.WallpaperPreviewGenerator.WallpaperItems;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the {@link PreviewGenerator}s, shared by the pipeline and the renderer processes.
+ * The built in generators adapt the ones in {@link org.cyanogenmod.themes.provider.util} to the
+ * common interface.
+ */
+class PreviewGenerators {
+    static final String STATUSBAR = "statusbar";
+    static final String ICON = "icon";
+    static final String WALLPAPER = "wallpaper";
+    static final String STYLE = "style";
+    static final String BOOT_ANIMATION = "boot animation";
+    static final String LIVE_LOCK_SCREEN = "live lock screen";
+
+    private static final long DEFAULT_DEADLINE_MS = 15 * 1000;
+
+    private static final Map<String, PreviewGenerator> sGenerators =
+            new LinkedHashMap<String, PreviewGenerator>();
+
+    static {
+        register(new BaseGenerator(STATUSBAR,
+                new String[] { ThemesColumns.MODIFIES_STATUS_BAR,
+                        ThemesColumns.MODIFIES_NAVIGATION_BAR },
+                new String[] { "assets/overlays/" + SystemUiPreviewGenerator.SYSTEMUI_PACKAGE },
+                concat(PreviewsTable.STATUS_BAR_PREVIEW_KEYS,
+                        PreviewsTable.NAVIGATION_BAR_PREVIEW_KEYS),
+                400, DEFAULT_DEADLINE_MS) {
+            @Override
+            public void generate(Context context, String pkgName, PackageInfo info,
+                    Context themeContext, List<PreviewItem> out) throws Exception {
+                addSystemUiItems(out, new SystemUiPreviewGenerator(context)
+                        .generateSystemUiItems(pkgName));
+            }
+        });
+        register(new BaseGenerator(ICON,
+                new String[] { ThemesColumns.MODIFIES_ICONS },
+                new String[] { "assets/icons" },
+                PreviewsTable.ICON_PREVIEW_KEYS,
+                300, DEFAULT_DEADLINE_MS) {
+            @Override
+            public void generate(Context context, String pkgName, PackageInfo info,
+                    Context themeContext, List<PreviewItem> out) throws Exception {
+                addIconItems(out, new IconPreviewGenerator(context).generateIconItems(pkgName));
+            }
+        });
+        register(new BaseGenerator(WALLPAPER,
+                new String[] { ThemesColumns.MODIFIES_LAUNCHER,
+                        ThemesColumns.MODIFIES_LOCKSCREEN },
+                new String[] { "assets/wallpapers", "assets/lockscreen" },
+                new String[] { PreviewColumns.WALLPAPER_FULL, PreviewColumns.WALLPAPER_PREVIEW,
+                        PreviewColumns.WALLPAPER_THUMBNAIL, PreviewColumns.LOCK_WALLPAPER_PREVIEW,
+                        PreviewColumns.LOCK_WALLPAPER_THUMBNAIL },
+                800, DEFAULT_DEADLINE_MS) {
+            @Override
+            public void generate(Context context, String pkgName, PackageInfo info,
+                    Context themeContext, List<PreviewItem> out) throws Exception {
+                addWallpaperItems(out, new WallpaperPreviewGenerator(context)
+                        .generateWallpaperPreviews(info, themeContext));
+            }
+        });
+        register(new BaseGenerator(STYLE,
+                new String[] { ThemesColumns.MODIFIES_OVERLAYS },
+                new String[] { "assets/overlays/android" },
+                new String[] { PreviewColumns.STYLE_THUMBNAIL, PreviewColumns.STYLE_PREVIEW },
+                600, DEFAULT_DEADLINE_MS) {
+            @Override
+            public void generate(Context context, String pkgName, PackageInfo info,
+                    Context themeContext, List<PreviewItem> out) throws Exception {
+                addStyleItems(out, new StylePreviewGenerator(context)
+                        .generateStylePreviews(pkgName));
+            }
+        });
+        // Scans the whole of the theme's bootanimation.zip, so it is given longer than the others
+        register(new BaseGenerator(BOOT_ANIMATION,
+                new String[] { ThemesColumns.MODIFIES_BOOT_ANIM },
+                new String[] { "assets/"
+                        + BootAnimationPreviewGenerator.THEME_BOOT_ANI_PATH },
+                new String[] { PreviewColumns.BOOTANIMATION_THUMBNAIL },
+                1500, 2 * DEFAULT_DEADLINE_MS) {
+            @Override
+            public void generate(Context context, String pkgName, PackageInfo info,
+                    Context themeContext, List<PreviewItem> out) throws Exception {
+                Bitmap bootAnim = new BootAnimationPreviewGenerator(context)
+                        .generateBootAnimationPreview(pkgName, themeContext);
+                if (bootAnim != null) {
+                    out.add(PreviewItem.fromBitmap(PreviewColumns.BOOTANIMATION_THUMBNAIL,
+                            bootAnim, Bitmap.CompressFormat.PNG));
+                }
+            }
+        });
+        register(new BaseGenerator(LIVE_LOCK_SCREEN,
+                new String[] { ThemesColumns.MODIFIES_LIVE_LOCK_SCREEN },
+                new String[] { "assets/live-lockscreen" },
+                new String[] { PreviewColumns.LIVE_LOCK_SCREEN_THUMBNAIL,
+                        PreviewColumns.LIVE_LOCK_SCREEN_PREVIEW },
+                300, DEFAULT_DEADLINE_MS) {
+            @Override
+            public void generate(Context context, String pkgName, PackageInfo info,
+                    Context themeContext, List<PreviewItem> out) throws Exception {
+                // The system theme has no live lock screen of its own
+                if (themeContext == null) return;
+                addLiveLockScreenItems(out, new LiveLockScreenPreviewGenerator(context)
+                        .generateLiveLockScreenPreview(themeContext));
+            }
+        });
+    }
+
+    /**
+     * Adds a generator.  Must be called before the first theme is processed, the registry is
+     * not changed afterwards.
+     */
+    static void register(PreviewGenerator generator) {
+        if (sGenerators.containsKey(generator.getName())) {
+            throw new IllegalArgumentException("Duplicate preview generator "
+                    + generator.getName());
+        }
+        sGenerators.put(generator.getName(), generator);
+    }
+
+    static Collection<PreviewGenerator> getAll() {
+        return Collections.unmodifiableCollection(sGenerators.values());
+    }
+
+    static PreviewGenerator get(String name) {
+        final PreviewGenerator generator = sGenerators.get(name);
+        if (generator == null) {
+            throw new IllegalArgumentException("Unknown preview generator " + name);
+        }
+        return generator;
+    }
+
+    static long getShortestDeadlineMs() {
+        long shortest = Long.MAX_VALUE;
+        for (PreviewGenerator generator : sGenerators.values()) {
+            shortest = Math.min(shortest, generator.getDeadlineMs());
+        }
+        return shortest;
+    }
+
+    static void dump(PrintWriter pw) {
+        for (PreviewGenerator generator : sGenerators.values()) {
+            pw.println("  registered " + generator.getName() + ": capabilities="
+                    + Arrays.toString(generator.getCapabilities()) + " assets="
+                    + Arrays.toString(generator.getAssetPaths()) + " keys="
+                    + generator.getPreviewKeys().length + " costMs="
+                    + generator.getEstimatedCostMs() + " deadlineMs="
+                    + generator.getDeadlineMs());
+        }
+    }
+
+    /**
+     * Holds what a built in generator declares.
+     */
+    private abstract static class BaseGenerator implements PreviewGenerator {
+        private final String mName;
+        private final String[] mCapabilities;
+        private final String[] mAssetPaths;
+        private final String[] mPreviewKeys;
+        private final long mEstimatedCostMs;
+        private final long mDeadlineMs;
+
+        BaseGenerator(String name, String[] capabilities, String[] assetPaths,
+                String[] previewKeys, long estimatedCostMs, long deadlineMs) {
+            mName = name;
+            mCapabilities = capabilities;
+            mAssetPaths = assetPaths;
+            mPreviewKeys = previewKeys;
+            mEstimatedCostMs = estimatedCostMs;
+            mDeadlineMs = deadlineMs;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public String[] getCapabilities() {
+            return mCapabilities;
+        }
+
+        @Override
+        public String[] getAssetPaths() {
+            return mAssetPaths;
+        }
+
+        @Override
+        public String[] getPreviewKeys() {
+            return mPreviewKeys;
+        }
+
+        @Override
+        public long getEstimatedCostMs() {
+            return mEstimatedCostMs;
+        }
+
+        @Override
+        public long getDeadlineMs() {
+            return mDeadlineMs;
+        }
+    }
+
+    private static void addSystemUiItems(List<PreviewItem> out, SystemUiItems items) {
+        if (items == null) return;
+        addPng(out, PreviewColumns.STATUSBAR_BACKGROUND, items.statusbarBackground);
+        addPng(out, PreviewColumns.STATUSBAR_BLUETOOTH_ICON, items.bluetoothIcon);
+        addPng(out, PreviewColumns.STATUSBAR_WIFI_ICON, items.wifiIcon);
+        addPng(out, PreviewColumns.STATUSBAR_SIGNAL_ICON, items.signalIcon);
+        addPng(out, PreviewColumns.STATUSBAR_BATTERY_PORTRAIT, items.batteryPortrait);
+        addPng(out, PreviewColumns.STATUSBAR_BATTERY_LANDSCAPE, items.batteryLandscape);
+        addPng(out, PreviewColumns.STATUSBAR_BATTERY_CIRCLE, items.batteryCircle);
+        out.add(PreviewItem.fromValue(PreviewColumns.STATUSBAR_CLOCK_TEXT_COLOR,
+                items.clockColor));
+        out.add(PreviewItem.fromValue(PreviewColumns.STATUSBAR_WIFI_COMBO_MARGIN_END,
+                items.wifiMarginEnd));
+        addPng(out, PreviewColumns.NAVBAR_BACKGROUND, items.navbarBackground);
+        addPng(out, PreviewColumns.NAVBAR_BACK_BUTTON, items.navbarBack);
+        addPng(out, PreviewColumns.NAVBAR_HOME_BUTTON, items.navbarHome);
+        addPng(out, PreviewColumns.NAVBAR_RECENT_BUTTON, items.navbarRecent);
+    }
+
+    private static void addIconItems(List<PreviewItem> out, IconItems icons) {
+        if (icons == null) return;
+        addSharedPng(out, PreviewColumns.ICON_PREVIEW_1, icons.icon1);
+        addSharedPng(out, PreviewColumns.ICON_PREVIEW_2, icons.icon2);
+        addSharedPng(out, PreviewColumns.ICON_PREVIEW_3, icons.icon3);
+    }
+
+    private static void addWallpaperItems(List<PreviewItem> out, WallpaperItems wallpaperItems) {
+        if (wallpaperItems == null) return;
+        for (int i = 0; i < wallpaperItems.wallpapers.size(); i++) {
+            WallpaperItem wallpaperItem = wallpaperItems.wallpapers.get(i);
+            if (wallpaperItem == null) continue;
+
+            if (wallpaperItem.assetPath != null) {
+                out.add(PreviewItem.fromValue(PreviewColumns.WALLPAPER_FULL, i,
+                        wallpaperItem.assetPath));
+            }
+            if (wallpaperItem.preview != null) {
+                out.add(PreviewItem.fromData(PreviewColumns.WALLPAPER_PREVIEW, i,
+                        wallpaperItem.preview));
+            }
+            if (wallpaperItem.thumbnail != null) {
+                out.add(PreviewItem.fromData(PreviewColumns.WALLPAPER_THUMBNAIL, i,
+                        wallpaperItem.thumbnail));
+            }
+        }
+
+        final WallpaperItem lockscreen = wallpaperItems.lockscreen;
+        if (lockscreen != null) {
+            if (lockscreen.preview != null) {
+                out.add(PreviewItem.fromData(PreviewColumns.LOCK_WALLPAPER_PREVIEW, 0,
+                        lockscreen.preview));
+            }
+            if (lockscreen.thumbnail != null) {
+                out.add(PreviewItem.fromData(PreviewColumns.LOCK_WALLPAPER_THUMBNAIL, 0,
+                        lockscreen.thumbnail));
+            }
+        }
+    }
+
+    private static void addStyleItems(List<PreviewItem> out, StyleItems styleItems) {
+        if (styleItems == null) return;
+        addPng(out, PreviewColumns.STYLE_THUMBNAIL, styleItems.thumbnail);
+        addPng(out, PreviewColumns.STYLE_PREVIEW, styleItems.preview);
+    }
+
+    private static void addLiveLockScreenItems(List<PreviewItem> out,
+            LiveLockScreenItems liveLockScreenItems) {
+        if (liveLockScreenItems == null) return;
+        out.add(PreviewItem.fromBitmap(PreviewColumns.LIVE_LOCK_SCREEN_THUMBNAIL,
+                liveLockScreenItems.thumbnail, Bitmap.CompressFormat.JPEG));
+        out.add(PreviewItem.fromBitmap(PreviewColumns.LIVE_LOCK_SCREEN_PREVIEW,
+                liveLockScreenItems.preview, Bitmap.CompressFormat.JPEG));
+    }
+
+    private static void addPng(List<PreviewItem> out, String key, Bitmap bitmap) {
+        out.add(PreviewItem.fromBitmap(key, bitmap, Bitmap.CompressFormat.PNG));
+    }
+
+    /**
+     * Adds a bitmap that belongs to a drawable, which may be cached, so it must not be recycled.
+     */
+    private static void addSharedPng(List<PreviewItem> out, String key, Bitmap bitmap) {
+        PreviewItem item = PreviewItem.fromBitmap(key, bitmap, Bitmap.CompressFormat.PNG);
+        item.ownsBitmap = false;
+        out.add(item);
+    }
+
+    private static String[] concat(String[] a, String[] b) {
+        String[] result = new String[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
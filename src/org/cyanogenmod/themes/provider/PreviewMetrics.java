@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps per theme, per generator metrics for the most recent preview generation runs in a
+ * bounded ring buffer, so that themes that are pathologically slow to process can be found
+ * without keeping an unbounded history.
+ */
+public class PreviewMetrics {
+    private static final int CAPACITY = 64;
+    // Slowest themes listed by dump
+    private static final int SLOWEST_THEMES = 5;
+
+    /**
+     * Metrics for one run of a theme through the pipeline.
+     */
+    public static class ThemeRecord {
+        final String pkgName;
+        final String action;
+        // Wall clock time the run completed
+        final long time = System.currentTimeMillis();
+        long resolveMs;
+        long totalMs;
+        final List<GeneratorRecord> generators = new ArrayList<GeneratorRecord>();
+
+        ThemeRecord(String pkgName, String action) {
+            this.pkgName = pkgName;
+            this.action = action;
+        }
+
+        long getBitmapBytes() {
+            long bytes = 0;
+            for (GeneratorRecord generator : generators) {
+                bytes += generator.bitmapBytes;
+            }
+            return bytes;
+        }
+
+        long getBytesWritten() {
+            long bytes = 0;
+            for (GeneratorRecord generator : generators) {
+                bytes += generator.bytesWritten;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Metrics for one generator within a run.  Assets are decoded by the generators themselves,
+     * so decoding is part of the render time.
+     */
+    public static class GeneratorRecord {
+        final String name;
+        long renderMs;
+        long encodeMs;
+        long persistMs;
+        // Bitmaps produced by the generator and the bytes they held before being encoded
+        int bitmaps;
+        long bitmapBytes;
+        // Bytes of new blobs written, previews that were already stored are not counted
+        long bytesWritten;
+        boolean failed;
+        // Cancelled for missing its deadline, renderMs is how long it ran until then
+        boolean timedOut;
+        // Imported from the previews the theme ships rather than rendered
+        boolean imported;
+
+        GeneratorRecord(String name) {
+            this.name = name;
+        }
+    }
+
+    private final ThemeRecord[] mRecords = new ThemeRecord[CAPACITY];
+    private int mNext;
+    private int mCount;
+
+    public synchronized void add(ThemeRecord record) {
+        mRecords[mNext] = record;
+        mNext = (mNext + 1) % CAPACITY;
+        mCount = Math.min(mCount + 1, CAPACITY);
+    }
+
+    /**
+     * @return The buffered records, oldest first
+     */
+    private List<ThemeRecord> getRecords() {
+        List<ThemeRecord> records = new ArrayList<ThemeRecord>(mCount);
+        for (int i = 0; i < mCount; i++) {
+            records.add(mRecords[(mNext - mCount + i + CAPACITY) % CAPACITY]);
+        }
+        return records;
+    }
+
+    /**
+     * @return Bundle with a list of per theme Bundles, oldest first, under "themes".  Each has
+     *         the theme's totals and a Bundle per generator under "generators".
+     */
+    public synchronized Bundle getStats() {
+        ArrayList<Bundle> themes = new ArrayList<Bundle>(mCount);
+        for (ThemeRecord record : getRecords()) {
+            Bundle theme = new Bundle();
+            theme.putString("pkg_name", record.pkgName);
+            theme.putString("action", record.action);
+            theme.putLong("time", record.time);
+            theme.putLong("resolve_ms", record.resolveMs);
+            theme.putLong("total_ms", record.totalMs);
+            theme.putLong("bitmap_bytes", record.getBitmapBytes());
+            theme.putLong("bytes_written", record.getBytesWritten());
+            Bundle generators = new Bundle();
+            for (GeneratorRecord generator : record.generators) {
+                Bundle stats = new Bundle();
+                stats.putLong("render_ms", generator.renderMs);
+                stats.putLong("encode_ms", generator.encodeMs);
+                stats.putLong("persist_ms", generator.persistMs);
+                stats.putInt("bitmaps", generator.bitmaps);
+                stats.putLong("bitmap_bytes", generator.bitmapBytes);
+                stats.putLong("bytes_written", generator.bytesWritten);
+                stats.putBoolean("failed", generator.failed);
+                stats.putBoolean("timed_out", generator.timedOut);
+                stats.putBoolean("imported", generator.imported);
+                generators.putBundle(generator.name, stats);
+            }
+            theme.putBundle("generators", generators);
+            themes.add(theme);
+        }
+        Bundle stats = new Bundle();
+        stats.putInt("capacity", CAPACITY);
+        stats.putParcelableArrayList("themes", themes);
+        return stats;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        final List<ThemeRecord> records = getRecords();
+        pw.println("  recent runs=" + records.size() + " (of " + CAPACITY + ")");
+
+        // Generator name to {runs, failures, render ms, max render ms, encode ms, persist ms,
+        // max bitmap bytes, bytes written, timeouts}
+        Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+        for (ThemeRecord record : records) {
+            for (GeneratorRecord generator : record.generators) {
+                long[] t = totals.get(generator.name);
+                if (t == null) {
+                    t = new long[9];
+                    totals.put(generator.name, t);
+                }
+                t[0]++;
+                if (generator.failed) {
+                    t[1]++;
+                }
+                t[2] += generator.renderMs;
+                t[3] = Math.max(t[3], generator.renderMs);
+                t[4] += generator.encodeMs;
+                t[5] += generator.persistMs;
+                t[6] = Math.max(t[6], generator.bitmapBytes);
+                t[7] += generator.bytesWritten;
+                if (generator.timedOut) {
+                    t[8]++;
+                }
+            }
+        }
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            final long[] t = entry.getValue();
+            pw.println("  recent " + entry.getKey() + ": runs=" + t[0] + " failed=" + t[1]
+                    + " timedOut=" + t[8] + " avgRenderMs=" + (t[2] / t[0]) + " maxRenderMs=" + t[3]
+                    + " avgEncodeMs=" + (t[4] / t[0]) + " avgPersistMs=" + (t[5] / t[0])
+                    + " maxBitmapBytes=" + t[6] + " bytesWritten=" + t[7]);
+        }
+
+        List<ThemeRecord> slowest = new ArrayList<ThemeRecord>(records);
+        Collections.sort(slowest, new Comparator<ThemeRecord>() {
+            @Override
+            public int compare(ThemeRecord lhs, ThemeRecord rhs) {
+                return Long.compare(rhs.totalMs, lhs.totalMs);
+            }
+        });
+        for (ThemeRecord record : slowest.subList(0, Math.min(SLOWEST_THEMES, slowest.size()))) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("  slow ").append(record.pkgName).append(": totalMs=")
+                    .append(record.totalMs).append(" resolveMs=").append(record.resolveMs)
+                    .append(" bitmapBytes=").append(record.getBitmapBytes());
+            for (GeneratorRecord generator : record.generators) {
+                sb.append(' ').append(generator.name).append('=').append(generator.renderMs)
+                        .append('+').append(generator.encodeMs).append('+')
+                        .append(generator.persistMs).append("ms");
+                if (generator.timedOut) {
+                    sb.append("(timed out)");
+                } else if (generator.failed) {
+                    sb.append("(failed)");
+                }
+            }
+            pw.println(sb);
+        }
+    }
+}
@@ -0,0 +1,1464 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.ThemeConfig;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import cyanogenmod.providers.ThemesContract.MixnMatchColumns;
+import cyanogenmod.providers.ThemesContract.PreviewColumns;
+import cyanogenmod.providers.ThemesContract.ThemesColumns;
+
+import org.cyanogenmod.themes.provider.util.BitmapBudget;
+import org.cyanogenmod.themes.provider.util.ComponentFingerprints;
+import org.cyanogenmod.themes.provider.util.PreviewBlobStore;
+import org.cyanogenmod.themes.provider.util.PreviewItem;
+import org.cyanogenmod.themes.provider.util.PreviewUtils;
+import org.cyanogenmod.themes.provider.util.ShippedPreviews;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates theme previews in four stages, each with its own executor:
+ *
+ * resolve - looks up the theme's row and package info
+ * render  - runs the theme's preview generators in parallel to produce bitmaps
+ * encode  - compresses a component's bitmaps to PNG or JPG
+ * persist - writes a component's encoded previews to disk and the previews table
+ *
+ * Each component leaves the render stage as soon as its generator finishes and is committed on
+ * its own, together with the removal of its row in the provider's work table.  If the process
+ * dies part way through a theme, only the components that were not committed yet are generated
+ * again when the work is resumed, see {@link PreviewGenerationService#ACTION_RESUME}.
+ *
+ * Stages are joined by bounded queues.  When a downstream queue is full the upstream stage
+ * blocks, so at most a few themes are in flight no matter how many are submitted.  On top of
+ * that every generator acquires the bitmap memory it is expected to use from the process wide
+ * {@link BitmapBudget} before it runs, and it is released once the component is encoded, so
+ * peak bitmap memory does not grow with parallelism.  Render and encode concurrency is derived
+ * from the number of cores and the device's memory class.
+ *
+ * Unless config_isolatedPreviewRenderer is turned off, the generators themselves run in a pool
+ * of renderer processes, see {@link PreviewRendererPool}, so that a theme which crashes or
+ * exhausts the heap of a renderer only fails the components that renderer was working on.  The
+ * budget then limits how much is dispatched to the renderers at once.
+ *
+ * Every generator has a deadline, see {@link PreviewGenerators#getDeadlineMs}, which the render
+ * stage enforces while it waits for the theme's components.  A generator that misses it is
+ * cancelled and its component is handed on without being committed, keeping its current
+ * previews, while the rest of the theme carries on.  Once a theme's generators have started,
+ * the render stage is therefore held up by it for no longer than the longest deadline.  A
+ * renderer process running a cancelled generator is killed, whereas a generator in this
+ * process that ignores the interrupt keeps its thread until it returns.  Such a thread is
+ * abandoned: the generator pool grows by one for as long as it is stuck, so stuck generators
+ * never take the slots other themes' generators need.
+ *
+ * Generators that fail or time out are recorded by the provider against the theme's APK, and
+ * are not run again for that APK until the failure has backed off, see
+ * {@link ThemesOpenHelper.PreviewFailuresTable}.
+ *
+ * A theme may ship its previews already rendered, see {@link ShippedPreviews}.  A generator
+ * whose previews are all shipped, at a density no lower than the device's, is not run and its
+ * previews are imported instead, falling back to the generator if they cannot be read.
+ *
+ * Themes waiting to be resolved are not processed in arrival order.  Each time the resolve stage
+ * is free it picks the waiting theme with the highest score, which is how long the theme has
+ * waited plus a head start if a client asked for it through {@link #prioritize} or if it is
+ * currently applied.  Since waiting time always counts, background themes are never starved.
+ *
+ * Nothing stops a theme from being submitted, but sources of background work are expected to ask
+ * {@link #admit} first and send the theme to the preview backlog when it is refused, so that a
+ * burst of installs does not pile up here while the heap is already under pressure.
+ *
+ * There is a single pipeline per process, shared by everything that generates previews, so
+ * that requests for the same theme are merged no matter where they come from.  Its threads
+ * time out when there is no work.
+ */
+public class PreviewPipeline {
+    private static final String TAG = PreviewPipeline.class.getSimpleName();
+
+    // Approximate heap, in MB, needed by one render worker at full preview size
+    private static final int RENDER_WORKER_MEMORY_MB = 48;
+    private static final int MAX_RENDER_THREADS = 4;
+    private static final int MAX_ENCODE_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Head start given to themes a client is showing and to themes that are currently applied
+    private static final long PRIORITY_HINT_BOOST_MS = 5 * 60 * 1000;
+    private static final long APPLIED_BOOST_MS = 60 * 1000;
+    // How long a prioritize hint is honored for a theme that has not been submitted yet
+    private static final long PRIORITY_HINT_TTL_MS = 2 * 60 * 1000;
+
+    // Background themes are no longer admitted once this many themes are queued or being
+    // processed, or once the heap is this full
+    private static final int MAX_ADMITTED_THEMES = 16;
+    private static final float HEAP_WATERMARK = 0.75f;
+
+    public interface Callback {
+        /**
+         * Called once for every submitted theme when it leaves the pipeline, whether or not
+         * previews were generated for it.  May be called from any of the pipeline's threads.
+         */
+        void onThemeProcessed(String pkgName);
+    }
+
+    private static PreviewPipeline sInstance;
+
+    private final Context mContext;
+    private final int mRenderThreads;
+    private final int mEncodeThreads;
+    // Bitmap bytes acquired for a generator that has not run yet, a full screen ARGB_8888 bitmap
+    private final long mDefaultBitmapEstimate;
+    // Shipped previews made for a lower density than this, or larger than the screen, are not
+    // imported
+    private final int mDensityDpi;
+    private final int mMaxPreviewDimension;
+    // Generator name to the most bitmap bytes it has produced, guarded by this
+    private final Map<String, Long> mBitmapEstimates = new HashMap<String, Long>();
+
+    private final ThreadPoolExecutor mResolveExecutor;
+    private final ThreadPoolExecutor mRenderExecutor;
+    private final ThreadPoolExecutor mEncodeExecutor;
+    private final ThreadPoolExecutor mPersistExecutor;
+    // Runs the individual generators for themes in the render stage
+    private final ThreadPoolExecutor mGeneratorExecutor;
+    private final int mGeneratorThreads;
+    // Generator threads held by cancelled generators that have not returned, which the
+    // generator executor is grown past, guarded by this
+    private int mAbandonedThreads;
+    private int mMaxAbandonedThreads;
+    // Renderer processes the generators run in, null if they run in this process
+    private final PreviewRendererPool mRendererPool;
+
+    // Themes waiting to be resolved, keyed by package name.  Further requests for a theme that
+    // is still waiting are dropped since the queued run will pick up the latest state anyway.
+    private final Map<String, PreviewJob> mQueuedJobs = new HashMap<String, PreviewJob>();
+    // Themes that have started processing, mapped to the action of a requested rerun or null.
+    // A request that arrives mid-run may have seen a newer APK than the run did, so it marks
+    // the theme dirty and it is processed exactly once more when the current run finishes.
+    private final Map<String, String> mRunningJobs = new HashMap<String, String>();
+    // Themes clients have asked to be processed first, mapped to when they last asked
+    private final Map<String, Long> mPriorityHints = new HashMap<String, Long>();
+
+    // Metrics, guarded by this
+    private int mInFlight;
+    private int mMaxInFlight;
+    private int mAdmitted;
+    private int mRejectedForDepth;
+    private int mRejectedForMemory;
+    private int mDroppedDuplicates;
+    private int mRerunCount;
+    private int mTimeouts;
+    private int mSuppressedCount;
+    // Themes whose previews were all imported from what they ship, and components imported
+    private int mImportedThemes;
+    private int mImportedComponents;
+    // Bytes of encoded previews written to the blob store and bytes that were already stored
+    private long mBlobBytesWritten;
+    private long mBlobBytesShared;
+    private long mBusySince;
+    private long mBusyTimeMs;
+    private int mProcessedCount;
+    private int mGeneratedCount;
+    // Generator name to {runs, total ms, max ms}
+    private final Map<String, long[]> mGeneratorTimes = new LinkedHashMap<String, long[]>();
+    // Prioritized themes whose previews were published and the time from the hint, or from
+    // the theme being submitted if that came later, until they were
+    private int mPrioritizedCount;
+    private long mPrioritizedTotalMs;
+    private long mPrioritizedMaxMs;
+    // Per theme, per generator metrics of the most recent runs
+    private final PreviewMetrics mMetrics = new PreviewMetrics();
+
+    public static synchronized PreviewPipeline getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PreviewPipeline(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PreviewPipeline(Context context) {
+        mContext = context;
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final int memoryClass = am.getMemoryClass();
+        mRenderThreads = clamp(Math.min(cores - 1, memoryClass / RENDER_WORKER_MEMORY_MB),
+                1, MAX_RENDER_THREADS);
+        mEncodeThreads = clamp(cores / 2, 1, MAX_ENCODE_THREADS);
+        final DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        mDefaultBitmapEstimate = (long) dm.widthPixels * dm.heightPixels * 4;
+        mDensityDpi = dm.densityDpi;
+        mMaxPreviewDimension = Math.max(dm.widthPixels, dm.heightPixels);
+
+        // Submissions come from the main thread and must never block, so only the later
+        // stages get bounded queues.
+        mResolveExecutor = createExecutor("resolve", 1, new LinkedBlockingQueue<Runnable>());
+        mRenderExecutor = createExecutor("render", mRenderThreads,
+                new ArrayBlockingQueue<Runnable>(mRenderThreads));
+        mEncodeExecutor = createExecutor("encode", mEncodeThreads,
+                new ArrayBlockingQueue<Runnable>(mEncodeThreads));
+        mPersistExecutor = createExecutor("persist", 1,
+                new ArrayBlockingQueue<Runnable>(mEncodeThreads));
+        // Generators in renderer processes do not use this process's heap, so their parallelism
+        // is that of the pool rather than what the memory class allows for
+        mRendererPool = context.getResources().getBoolean(R.bool.config_isolatedPreviewRenderer)
+                ? new PreviewRendererPool(context) : null;
+        mGeneratorThreads = mRendererPool != null
+                ? mRendererPool.getSize() * PreviewRenderService.RENDER_THREADS : mRenderThreads;
+        // At most one task per generator per rendering theme is ever queued here, so this
+        // queue is bounded by the render stage even though it is not bounded itself.
+        mGeneratorExecutor = createExecutor("generate", mGeneratorThreads,
+                new LinkedBlockingQueue<Runnable>());
+        Log.d(TAG, "Using " + mRenderThreads + " render, " + mGeneratorThreads + " generator and "
+                + mEncodeThreads + " encode threads (cores=" + cores + ", memoryClass="
+                + memoryClass + ", renderers=" + (mRendererPool != null
+                        ? mRendererPool.getSize() : 0) + ")");
+    }
+
+    /**
+     * Queues the theme for preview generation.
+     * @param action One of {@link PreviewGenerationService#ACTION_INSERT},
+     *               {@link PreviewGenerationService#ACTION_UPDATE} or
+     *               {@link PreviewGenerationService#ACTION_RESUME}
+     * @param callback Notified when the theme leaves the pipeline
+     * @return True if a new job was queued, in which case {@link Callback#onThemeProcessed}
+     *         will be called for it, or false if the request was merged into an existing job
+     */
+    public boolean submit(String action, String pkgName, Callback callback) {
+        final PreviewJob job;
+        synchronized (this) {
+            final PreviewJob queued = mQueuedJobs.get(pkgName);
+            if (queued != null) {
+                if (PreviewGenerationService.ACTION_RESUME.equals(queued.action)
+                        && !PreviewGenerationService.ACTION_RESUME.equals(action)) {
+                    // A full run also covers whatever the resumed one would have generated
+                    mQueuedJobs.put(pkgName, new PreviewJob(action, pkgName, queued.callback));
+                }
+                mDroppedDuplicates++;
+                return false;
+            }
+            if (mRunningJobs.containsKey(pkgName)) {
+                final String rerunAction = mRunningJobs.get(pkgName);
+                if (rerunAction == null || (!PreviewGenerationService.ACTION_RESUME.equals(action)
+                        && PreviewGenerationService.ACTION_RESUME.equals(rerunAction))) {
+                    mRunningJobs.put(pkgName, action);
+                }
+                if (rerunAction != null) {
+                    mDroppedDuplicates++;
+                }
+                return false;
+            }
+            job = new PreviewJob(action, pkgName, callback);
+            mQueuedJobs.put(pkgName, job);
+            if (mInFlight++ == 0) {
+                mBusySince = SystemClock.elapsedRealtime();
+            }
+            mMaxInFlight = Math.max(mMaxInFlight, mInFlight);
+        }
+        mResolveExecutor.execute(mDispatchTask);
+        return true;
+    }
+
+    /**
+     * Admission control for background work.  Refusals are counted, and the caller is expected
+     * to defer the theme rather than submit it.
+     * @param pending Themes the caller is about to submit in addition to those already submitted
+     * @return True if another background theme can be submitted
+     */
+    public boolean admit(int pending) {
+        final Runtime runtime = Runtime.getRuntime();
+        final long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        synchronized (this) {
+            if (mInFlight + pending >= MAX_ADMITTED_THEMES) {
+                mRejectedForDepth++;
+                return false;
+            }
+            if (usedHeap > runtime.maxMemory() * HEAP_WATERMARK) {
+                mRejectedForMemory++;
+                return false;
+            }
+            mAdmitted++;
+            return true;
+        }
+    }
+
+    /**
+     * Moves the given themes ahead of background work, e.g. because a client is showing them.
+     * Themes that have not been submitted yet are moved ahead if they are submitted shortly.
+     */
+    public void prioritize(String[] pkgNames) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            // Drop hints for themes that were never submitted
+            Iterator<Map.Entry<String, Long>> it = mPriorityHints.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> hint = it.next();
+                if (now - hint.getValue() > PRIORITY_HINT_TTL_MS
+                        && !mQueuedJobs.containsKey(hint.getKey())
+                        && !mRunningJobs.containsKey(hint.getKey())) {
+                    it.remove();
+                }
+            }
+            for (String pkgName : pkgNames) {
+                mPriorityHints.put(pkgName, now);
+            }
+            Log.d(TAG, "Prioritized " + Arrays.toString(pkgNames) + " with "
+                    + mQueuedJobs.size() + " themes waiting");
+        }
+    }
+
+    private final ComponentStage mPersistStage = new ComponentStage("persist") {
+        @Override
+        void process(GeneratorTask task) {
+            if (task.mRetry || task.mFailed) {
+                // The component keeps its current previews, so readers never see it without
+                // any.  One that failed or timed out is retried once the failure has backed
+                // off, otherwise its work is left in place.
+                Log.i(TAG, "Leaving " + task.mName + " previews for " + task.mJob.pkgName
+                        + " to be retried");
+                if (task.mTimedOut || !task.mRetry) {
+                    Bundle extras = new Bundle();
+                    extras.putString(ThemesProvider.EXTRA_GENERATOR, task.mName);
+                    extras.putString(ThemesProvider.EXTRA_APK_FINGERPRINT,
+                            task.mJob.apkFingerprint);
+                    mContext.getContentResolver().call(ThemesColumns.CONTENT_URI,
+                            ThemesProvider.METHOD_RECORD_PREVIEW_FAILURE, task.mJob.pkgName,
+                            extras);
+                }
+                return;
+            }
+            final long start = SystemClock.uptimeMillis();
+            try {
+                commit(task);
+            } finally {
+                task.mPersistMs = SystemClock.uptimeMillis() - start;
+            }
+        }
+
+        @Override
+        void next(GeneratorTask task) {
+            if (task.mJob.pendingComponents.decrementAndGet() == 0) {
+                completeTheme(task.mJob);
+            }
+        }
+    };
+
+    private final ComponentStage mEncodeStage = new ComponentStage("encode") {
+        @Override
+        void process(GeneratorTask task) {
+            final long start = SystemClock.uptimeMillis();
+            try {
+                for (PreviewItem item : task.mItems) {
+                    item.encode();
+                }
+            } finally {
+                task.mEncodeMs = SystemClock.uptimeMillis() - start;
+            }
+        }
+
+        @Override
+        void next(GeneratorTask task) {
+            // The component's bitmaps have been encoded and recycled
+            BitmapBudget.getInstance().release(task.mReservedBytes);
+            task.mReservedBytes = 0;
+            mPersistExecutor.execute(mPersistStage.forTask(task));
+        }
+    };
+
+    private final StageTask mRenderTask = new StageTask("render") {
+        @Override
+        boolean process(PreviewJob job) {
+            render(job);
+            return true;
+        }
+
+        @Override
+        void next(PreviewJob job) {
+            // Components were handed to the encode stage as they finished rendering
+        }
+    };
+
+    private final StageTask mResolveTask = new StageTask("resolve") {
+        @Override
+        boolean process(PreviewJob job) {
+            job.startedAt = SystemClock.uptimeMillis();
+            try {
+                return resolve(job);
+            } finally {
+                job.resolveMs = SystemClock.uptimeMillis() - job.startedAt;
+            }
+        }
+
+        @Override
+        void next(PreviewJob job) {
+            mRenderExecutor.execute(mRenderTask.forJob(job));
+        }
+    };
+
+    /**
+     * Queued on the resolve executor once for every waiting theme.  Which theme it resolves is
+     * only decided when it runs, so that hints and waiting times are taken into account as late
+     * as possible.
+     */
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            PreviewJob job = takeNextJob();
+            if (job != null) {
+                mResolveTask.forJob(job).run();
+            }
+        }
+    };
+
+    private PreviewJob takeNextJob() {
+        // Only worth a query when there is more than one theme to choose from
+        final boolean hasChoice;
+        synchronized (this) {
+            hasChoice = mQueuedJobs.size() > 1;
+        }
+        final Set<String> applied = hasChoice
+                ? getAppliedThemes() : Collections.<String>emptySet();
+
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            PreviewJob next = null;
+            long nextScore = Long.MIN_VALUE;
+            for (PreviewJob job : mQueuedJobs.values()) {
+                long score = now - job.queuedAt;
+                if (isPrioritized(job)) {
+                    score += PRIORITY_HINT_BOOST_MS;
+                }
+                if (applied.contains(job.pkgName)) {
+                    score += APPLIED_BOOST_MS;
+                }
+                if (score > nextScore) {
+                    next = job;
+                    nextScore = score;
+                }
+            }
+            if (next != null) {
+                mQueuedJobs.remove(next.pkgName);
+                mRunningJobs.put(next.pkgName, null);
+            }
+            return next;
+        }
+    }
+
+    private boolean isPrioritized(PreviewJob job) {
+        final Long hintTime = mPriorityHints.get(job.pkgName);
+        if (hintTime == null) return false;
+        // A hint given long before the theme was submitted no longer reflects what is shown
+        if (job.queuedAt - hintTime > PRIORITY_HINT_TTL_MS) {
+            mPriorityHints.remove(job.pkgName);
+            return false;
+        }
+        return true;
+    }
+
+    private Set<String> getAppliedThemes() {
+        Set<String> applied = new HashSet<String>();
+        Cursor c = mContext.getContentResolver().query(MixnMatchColumns.CONTENT_URI,
+                new String[] { MixnMatchColumns.COL_VALUE }, null, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                applied.add(c.getString(0));
+            }
+            c.close();
+        }
+        return applied;
+    }
+
+    private void recordPrioritizedLatency(PreviewJob job) {
+        final Long hintTime = mPriorityHints.remove(job.pkgName);
+        if (hintTime == null || job.queuedAt - hintTime > PRIORITY_HINT_TTL_MS) return;
+        final long latencyMs = SystemClock.elapsedRealtime() - Math.max(hintTime, job.queuedAt);
+        mPrioritizedCount++;
+        mPrioritizedTotalMs += latencyMs;
+        mPrioritizedMaxMs = Math.max(mPrioritizedMaxMs, latencyMs);
+        Log.d(TAG, "Prioritized previews for " + job.pkgName + " ready in " + latencyMs
+                + "ms with " + mQueuedJobs.size() + " themes waiting");
+    }
+
+    private boolean resolve(PreviewJob job) {
+        if (PreviewGenerationService.ACTION_RESUME.equals(job.action)) {
+            Bundle work = mContext.getContentResolver().call(ThemesColumns.CONTENT_URI,
+                    ThemesProvider.METHOD_GET_PREVIEW_WORK, job.pkgName, null);
+            final String[] generators = work != null
+                    ? work.getStringArray(ThemesProvider.EXTRA_GENERATORS) : null;
+            // The interrupted run may have been completed by a later one in the meantime
+            if (generators == null || generators.length == 0) return false;
+            job.resumedGenerators = new HashSet<String>(Arrays.asList(generators));
+        } else if (!PreviewGenerationService.ACTION_INSERT.equals(job.action)
+                && !PreviewGenerationService.ACTION_UPDATE.equals(job.action)) {
+            return false;
+        }
+
+        String selection = ThemesColumns.PKG_NAME + "=?";
+        String[] selectionArgs = { job.pkgName };
+        Cursor c = mContext.getContentResolver().query(ThemesColumns.CONTENT_URI, null,
+                selection, selectionArgs, null);
+        if (c == null) return false;
+        try {
+            if (!c.moveToFirst()) return false;
+            job.themeId = c.getInt(c.getColumnIndexOrThrow(ThemesColumns._ID));
+            for (PreviewGenerator generator : PreviewGenerators.getAll()) {
+                for (String capability : generator.getCapabilities()) {
+                    // Some MODIFIES_* columns were added in later versions of the database, so
+                    // make sure they exist before reading them
+                    final int index = c.getColumnIndex(capability);
+                    if (index >= 0 && c.getInt(index) == 1) {
+                        job.capabilities.add(capability);
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        if (!job.isSystemTheme) {
+            try {
+                job.info = mContext.getPackageManager().getPackageInfo(job.pkgName, 0);
+                job.themeContext = mContext.createPackageContext(job.pkgName, 0);
+            } catch (NameNotFoundException e) {
+                Log.e(TAG, "Unable to get package info for " + job.pkgName, e);
+                return false;
+            }
+            job.shippedPreviews = ShippedPreviews.load(job.themeContext, mDensityDpi,
+                    mMaxPreviewDimension);
+
+            try {
+                job.fingerprints = ComponentFingerprints.compute(
+                        job.info.applicationInfo.sourceDir, PreviewGenerators.getAll());
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to fingerprint " + job.pkgName, e);
+            }
+            if (job.fingerprints != null
+                    && PreviewGenerationService.ACTION_UPDATE.equals(job.action)) {
+                job.previousFingerprints = mContext.getContentResolver().call(
+                        ThemesColumns.CONTENT_URI,
+                        ThemesProvider.METHOD_GET_PREVIEW_FINGERPRINTS, job.pkgName, null);
+            }
+        }
+
+        job.apkFingerprint = ComponentFingerprints.forPackage(job.info);
+        Bundle extras = new Bundle();
+        extras.putString(ThemesProvider.EXTRA_APK_FINGERPRINT, job.apkFingerprint);
+        Bundle suppressed = mContext.getContentResolver().call(ThemesColumns.CONTENT_URI,
+                ThemesProvider.METHOD_GET_SUPPRESSED_PREVIEWS, job.pkgName, extras);
+        if (suppressed != null) {
+            job.suppressedGenerators = new HashSet<String>(Arrays.asList(
+                    suppressed.getStringArray(ThemesProvider.EXTRA_GENERATORS)));
+        }
+        return true;
+    }
+
+    private void render(PreviewJob job) {
+        job.generators = createGeneratorTasks(job);
+        List<GeneratorTask> components = new ArrayList<GeneratorTask>();
+        List<GeneratorTask> tasks = new ArrayList<GeneratorTask>();
+        for (GeneratorTask task : job.generators) {
+            if (job.resumedGenerators != null) {
+                // Everything else was committed before the previous run was interrupted
+                task.mKept = !job.resumedGenerators.contains(task.mName);
+            } else if (task.mEnabled && job.isIncremental() && task.isUnchanged()
+                    && !task.mImported) {
+                // Shipped previews are not part of the fingerprints, but are cheap to import
+                task.mKept = true;
+                Log.d(TAG, "Keeping unchanged " + task.mName + " previews for " + job.pkgName);
+            }
+            if (!task.mKept && task.mEnabled && job.suppressedGenerators != null
+                    && job.suppressedGenerators.contains(task.mName)) {
+                // Keeps failing for this version of the theme, so leave its previews as they are
+                task.mSuppressed = true;
+                job.hasSuppressed = true;
+                Log.i(TAG, "Not retrying " + task.mName + " previews for " + job.pkgName
+                        + " yet");
+                synchronized (this) {
+                    mSuppressedCount++;
+                }
+            }
+            if (task.mKept || task.mSuppressed) continue;
+            // Components the theme does not modify are committed without running their
+            // generator, which removes any previews left over from a previous version
+            components.add(task);
+            if (task.mEnabled) {
+                tasks.add(task);
+            }
+        }
+        if (components.isEmpty()) {
+            completeTheme(job);
+            return;
+        }
+
+        final String[] generators = new String[components.size()];
+        for (int i = 0; i < generators.length; i++) {
+            generators[i] = components.get(i).mName;
+        }
+        Bundle extras = new Bundle();
+        extras.putStringArray(ThemesProvider.EXTRA_GENERATORS, generators);
+        mContext.getContentResolver().call(ThemesColumns.CONTENT_URI,
+                ThemesProvider.METHOD_START_PREVIEW_WORK, job.pkgName, extras);
+        job.pendingComponents.set(components.size());
+
+        // The generators are independent of each other, so fan them out.  The theme is then only
+        // as slow as its slowest generator rather than the sum of all of them, which the slowest
+        // generators starting first keeps it close to when there are fewer threads than
+        // generators.  This thread only hands finished components on, so a generator waiting
+        // for bitmap memory can never hold up the encoding that releases it.
+        final long start = SystemClock.uptimeMillis();
+        for (GeneratorTask task : components) {
+            if (!task.mEnabled) {
+                job.rendered.add(task);
+            }
+        }
+        final Map<GeneratorTask, Long> expectedMs = new HashMap<GeneratorTask, Long>();
+        for (GeneratorTask task : tasks) {
+            // Imports take next to no time and go last
+            expectedMs.put(task, task.mImported ? 0 : getExpectedDuration(task.mGenerator));
+        }
+        Collections.sort(tasks, new Comparator<GeneratorTask>() {
+            @Override
+            public int compare(GeneratorTask lhs, GeneratorTask rhs) {
+                return Long.compare(expectedMs.get(rhs), expectedMs.get(lhs));
+            }
+        });
+        for (GeneratorTask task : tasks) {
+            mGeneratorExecutor.execute(task);
+        }
+
+        // Hand each component on as soon as it is rendered, so that it is committed even if a
+        // later generator brings the process down
+        StringBuilder timings = new StringBuilder();
+        long criticalPath = 0;
+        for (int i = 0; i < components.size(); i++) {
+            final GeneratorTask task = takeRendered(job, tasks);
+            if (task.mEnabled) {
+                criticalPath = Math.max(criticalPath, task.mDurationMs);
+                timings.append(' ').append(task.mName).append('=').append(task.mDurationMs)
+                        .append("ms");
+                if (!task.mImported) {
+                    recordGeneratorTime(task.mName, task.mDurationMs);
+                }
+            }
+            mEncodeExecutor.execute(mEncodeStage.forTask(task));
+        }
+        final long elapsed = SystemClock.uptimeMillis() - start;
+        Log.d(TAG, "Rendered " + job.pkgName + " in " + elapsed + "ms (slowest generator "
+                + criticalPath + "ms):" + timings);
+    }
+
+    /**
+     * Waits for the next of the theme's components to be rendered, cancelling the generators
+     * that run past their deadline in the meantime.
+     */
+    private static GeneratorTask takeRendered(PreviewJob job, List<GeneratorTask> tasks) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                final long now = SystemClock.uptimeMillis();
+                // Generators that have not started cannot expire before the shortest deadline
+                long timeout = PreviewGenerators.getShortestDeadlineMs();
+                for (GeneratorTask task : tasks) {
+                    final long startedAt = task.mStartedAt;
+                    if (startedAt == 0 || task.mHandedOn.get()) continue;
+                    final long remaining = startedAt + task.mGenerator.getDeadlineMs() - now;
+                    if (remaining <= 0) {
+                        task.cancel(now);
+                    } else {
+                        timeout = Math.min(timeout, remaining);
+                    }
+                }
+                try {
+                    final GeneratorTask task = job.rendered.poll(timeout, TimeUnit.MILLISECONDS);
+                    if (task != null) return task;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private List<GeneratorTask> createGeneratorTasks(PreviewJob job) {
+        List<GeneratorTask> tasks = new ArrayList<GeneratorTask>();
+        for (PreviewGenerator generator : PreviewGenerators.getAll()) {
+            tasks.add(new GeneratorTask(generator, job));
+        }
+        return tasks;
+    }
+
+    /**
+     * Publishes a component's previews as a new generation.  The new blobs are stored alongside
+     * the current ones, then a single provider transaction swaps the component's preview rows
+     * over to them and marks its work as done, and only then is the previous generation
+     * reclaimed.
+     */
+    private void commit(GeneratorTask task) {
+        final PreviewJob job = task.mJob;
+        final String filesDir = mContext.getFilesDir().getAbsolutePath();
+
+        final Map<PreviewItem, String> blobPaths = storeBlobs(task, filesDir);
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>(task.mItems.size());
+        for (PreviewItem item : task.mItems) {
+            String value = item.value;
+            if (item.isImage) {
+                value = blobPaths.get(item);
+            }
+            ContentValues values = new ContentValues();
+            values.put(PreviewColumns.COMPONENT_ID, item.componentId);
+            values.put(PreviewColumns.COL_KEY, item.key);
+            values.put(PreviewColumns.COL_VALUE, value);
+            rows.add(values);
+        }
+
+        // Record the assets the generator's previews now reflect.  The fingerprint is cleared if
+        // the theme does not modify its components so that it is regenerated next time.
+        Bundle fingerprints = new Bundle();
+        fingerprints.putString(task.mName, job.fingerprints != null && task.mEnabled
+                ? job.fingerprints.get(task.mName) : null);
+
+        Bundle extras = new Bundle();
+        extras.putStringArray(ThemesProvider.EXTRA_PREVIEW_KEYS, task.mKeys);
+        extras.putParcelableArrayList(ThemesProvider.EXTRA_PREVIEW_ROWS, rows);
+        extras.putBundle(ThemesProvider.EXTRA_FINGERPRINTS, fingerprints);
+        extras.putString(ThemesProvider.EXTRA_GENERATOR, task.mName);
+        if (task.mEnabled) {
+            extras.putString(ThemesProvider.EXTRA_APK_FINGERPRINT, job.apkFingerprint);
+        }
+        mContext.getContentResolver().call(ThemesColumns.CONTENT_URI,
+                ThemesProvider.METHOD_REPLACE_PREVIEWS, job.pkgName, extras);
+
+        // Files in the theme's own directory predate the blob store
+        deletePreviewFiles(PreviewUtils.getPreviewsDir(filesDir) + File.separator + job.pkgName,
+                Arrays.asList(task.mKeys));
+    }
+
+    /**
+     * Called once every component of the theme has been committed.  Reclaims what is left of
+     * the previous generation and takes the theme out of the pipeline.
+     */
+    private void completeTheme(PreviewJob job) {
+        try {
+            if (!job.isPartial()) {
+                PreviewGenerationService.clearThemePreviewsDir(
+                        PreviewUtils.getPreviewsDir(mContext.getFilesDir().getAbsolutePath())
+                                + File.separator + job.pkgName);
+            }
+            // Blobs only used by the replaced rows are now unreferenced
+            mContext.getContentResolver().call(ThemesColumns.CONTENT_URI,
+                    ThemesProvider.METHOD_COLLECT_PREVIEW_BLOBS, null, null);
+            int generated = 0;
+            int imported = 0;
+            for (GeneratorTask task : job.generators) {
+                if (!task.mEnabled || task.mKept || task.mSuppressed) continue;
+                generated++;
+                if (task.mImported) {
+                    imported++;
+                }
+            }
+            synchronized (this) {
+                mGeneratedCount++;
+                if (imported > 0 && imported == generated) {
+                    mImportedThemes++;
+                }
+                mImportedComponents += imported;
+                recordPrioritizedLatency(job);
+            }
+            mMetrics.add(createRecord(job));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to complete previews for " + job.pkgName, e);
+        }
+        finish(job);
+    }
+
+    private static PreviewMetrics.ThemeRecord createRecord(PreviewJob job) {
+        PreviewMetrics.ThemeRecord record = new PreviewMetrics.ThemeRecord(job.pkgName,
+                job.action);
+        record.resolveMs = job.resolveMs;
+        record.totalMs = SystemClock.uptimeMillis() - job.startedAt;
+        if (job.generators != null) {
+            for (GeneratorTask task : job.generators) {
+                if (task.mKept || task.mSuppressed || !task.mEnabled) continue;
+                PreviewMetrics.GeneratorRecord generator =
+                        new PreviewMetrics.GeneratorRecord(task.mName);
+                generator.renderMs = task.mDurationMs;
+                generator.encodeMs = task.mEncodeMs;
+                generator.persistMs = task.mPersistMs;
+                generator.bitmaps = task.mBitmaps;
+                generator.bitmapBytes = task.mBitmapBytes;
+                generator.bytesWritten = task.mBytesWritten;
+                generator.failed = task.mFailed;
+                generator.timedOut = task.mTimedOut;
+                generator.imported = task.mImported;
+                record.generators.add(generator);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * @return Metrics of the most recent runs, see {@link PreviewMetrics#getStats}
+     */
+    public Bundle getGenerationStats() {
+        return mMetrics.getStats();
+    }
+
+    /**
+     * Stores the encoded previews in the blob store.  Every blob is registered with
+     * the provider before it is written and before any row references it, so it can not be
+     * collected in between.
+     * @return Map of item to the path of its blob, items that could not be stored are left out
+     */
+    private Map<PreviewItem, String> storeBlobs(GeneratorTask task, String filesDir) {
+        final PreviewBlobStore blobStore = new PreviewBlobStore(filesDir);
+        final Map<String, byte[]> blobs = new LinkedHashMap<String, byte[]>();
+        final Map<PreviewItem, String> hashes = new HashMap<PreviewItem, String>();
+        for (PreviewItem item : task.mItems) {
+            if (!item.isImage || item.data == null) continue;
+            final String hash = PreviewBlobStore.hash(item.data);
+            blobs.put(hash, item.data);
+            hashes.put(item, hash);
+        }
+        final Map<PreviewItem, String> paths = new HashMap<PreviewItem, String>();
+        if (blobs.isEmpty()) return paths;
+
+        final String[] blobHashes = blobs.keySet().toArray(new String[blobs.size()]);
+        final long[] blobSizes = new long[blobHashes.length];
+        for (int i = 0; i < blobHashes.length; i++) {
+            blobSizes[i] = blobs.get(blobHashes[i]).length;
+        }
+        Bundle extras = new Bundle();
+        extras.putStringArray(ThemesProvider.EXTRA_BLOB_HASHES, blobHashes);
+        extras.putLongArray(ThemesProvider.EXTRA_BLOB_SIZES, blobSizes);
+        final Set<String> stored = new HashSet<String>();
+        synchronized (PreviewBlobStore.sLock) {
+            mContext.getContentResolver().call(ThemesColumns.CONTENT_URI,
+                    ThemesProvider.METHOD_REGISTER_PREVIEW_BLOBS, null, extras);
+            for (int i = 0; i < blobHashes.length; i++) {
+                try {
+                    final boolean written =
+                            blobStore.write(blobHashes[i], blobs.get(blobHashes[i]));
+                    if (written) {
+                        task.mBytesWritten += blobSizes[i];
+                    }
+                    synchronized (this) {
+                        if (written) {
+                            mBlobBytesWritten += blobSizes[i];
+                        } else {
+                            mBlobBytesShared += blobSizes[i];
+                        }
+                    }
+                    stored.add(blobHashes[i]);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to save preview for " + task.mJob.pkgName, e);
+                }
+            }
+        }
+        for (Map.Entry<PreviewItem, String> entry : hashes.entrySet()) {
+            if (stored.contains(entry.getValue())) {
+                paths.put(entry.getKey(), blobStore.getPath(entry.getValue()));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Deletes the preview files in dir that were saved for any of the given keys, either under
+     * the key itself or the key followed by a component id.  Previews are only saved in the
+     * theme's own directory by versions that predate the blob store.
+     */
+    private static void deletePreviewFiles(String dir, List<String> keys) {
+        File[] files = new File(dir).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            final String name = file.getName();
+            for (String key : keys) {
+                if (name.startsWith(key)
+                        && TextUtils.isDigitsOnly(name.substring(key.length()))) {
+                    file.delete();
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean runStage(PreviewJob job, StageTask stage) {
+        try {
+            if (stage.process(job)) return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to " + stage.mName + " previews for " + job.pkgName, e);
+        }
+        finish(job);
+        return false;
+    }
+
+    private void finish(PreviewJob job) {
+        PreviewJob rerun = null;
+        boolean idle = false;
+        synchronized (this) {
+            mProcessedCount++;
+            final String rerunAction = mRunningJobs.remove(job.pkgName);
+            if (rerunAction != null) {
+                // Hand the theme straight back to the resolve stage as the same outstanding
+                // request, so it stays in flight and the callback waits for the rerun.
+                rerun = new PreviewJob(rerunAction, job.pkgName, job.callback);
+                mQueuedJobs.put(job.pkgName, rerun);
+                mRerunCount++;
+            } else if (--mInFlight == 0) {
+                final long busyMs = SystemClock.elapsedRealtime() - mBusySince;
+                mBusyTimeMs += busyMs;
+                idle = true;
+                Log.i(TAG, "Generated previews for " + mGeneratedCount + " of "
+                        + mProcessedCount + " themes, " + formatThroughput());
+            }
+        }
+        if (idle && mRendererPool != null) {
+            // Let the renderer processes go while there is nothing for them to do
+            mRendererPool.release();
+        }
+        if (rerun != null) {
+            mResolveExecutor.execute(mDispatchTask);
+        } else {
+            job.callback.onThemeProcessed(job.pkgName);
+        }
+    }
+
+    private synchronized long getBitmapEstimate(String name) {
+        final Long estimate = mBitmapEstimates.get(name);
+        return estimate != null ? Math.max(estimate, mDefaultBitmapEstimate)
+                : mDefaultBitmapEstimate;
+    }
+
+    private synchronized void recordBitmapBytes(String name, long bytes) {
+        final Long estimate = mBitmapEstimates.get(name);
+        if (estimate == null || bytes > estimate) {
+            mBitmapEstimates.put(name, bytes);
+        }
+    }
+
+    /**
+     * @return How long the generator is expected to run, its average so far or what it declares
+     *         if it has not run yet
+     */
+    private synchronized long getExpectedDuration(PreviewGenerator generator) {
+        final long[] times = mGeneratorTimes.get(generator.getName());
+        return times != null ? times[1] / times[0] : generator.getEstimatedCostMs();
+    }
+
+    private synchronized void recordGeneratorTime(String name, long durationMs) {
+        long[] times = mGeneratorTimes.get(name);
+        if (times == null) {
+            times = new long[3];
+            mGeneratorTimes.put(name, times);
+        }
+        times[0]++;
+        times[1] += durationMs;
+        times[2] = Math.max(times[2], durationMs);
+    }
+
+    private String formatThroughput() {
+        if (mBusyTimeMs <= 0) return "0 themes/min";
+        return String.format("%.1f themes/min", mGeneratedCount * 60000f / mBusyTimeMs);
+    }
+
+    public synchronized void writeStats(Bundle stats) {
+        stats.putInt("preview_queue_depth", mInFlight);
+        stats.putInt("preview_max_queue_depth", mMaxInFlight);
+        stats.putInt("preview_admitted", mAdmitted);
+        stats.putInt("preview_rejected_depth", mRejectedForDepth);
+        stats.putInt("preview_rejected_memory", mRejectedForMemory);
+        stats.putInt("preview_timeouts", mTimeouts);
+        stats.putInt("preview_abandoned_threads", mAbandonedThreads);
+        stats.putInt("preview_suppressed", mSuppressedCount);
+        stats.putInt("preview_imported_themes", mImportedThemes);
+        stats.putInt("preview_imported_components", mImportedComponents);
+        BitmapBudget.getInstance().writeStats(stats);
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("PreviewPipeline:");
+            pw.println("  threads: render=" + mRenderThreads + " generate=" + mGeneratorThreads
+                    + " encode=" + mEncodeThreads + " abandoned=" + mAbandonedThreads
+                    + " maxAbandoned=" + mMaxAbandonedThreads);
+            pw.println("  queued: resolve=" + mResolveExecutor.getQueue().size()
+                    + " render=" + mRenderExecutor.getQueue().size()
+                    + " encode=" + mEncodeExecutor.getQueue().size()
+                    + " persist=" + mPersistExecutor.getQueue().size());
+            pw.println("  inFlight=" + mInFlight + " processed=" + mProcessedCount
+                    + " generated=" + mGeneratedCount + " busyMs=" + mBusyTimeMs
+                    + " throughput=" + formatThroughput());
+            pw.println("  droppedDuplicates=" + mDroppedDuplicates + " reruns=" + mRerunCount
+                    + " timeouts=" + mTimeouts + " suppressed=" + mSuppressedCount);
+            pw.println("  importedThemes=" + mImportedThemes + " (" + (mGeneratedCount > 0
+                    ? mImportedThemes * 100 / mGeneratedCount : 0) + "% of generated)"
+                    + " importedComponents=" + mImportedComponents);
+            pw.println("  maxInFlight=" + mMaxInFlight + " admitted=" + mAdmitted
+                    + " rejectedDepth=" + mRejectedForDepth
+                    + " rejectedMemory=" + mRejectedForMemory);
+            pw.println("  blobBytesWritten=" + mBlobBytesWritten
+                    + " blobBytesShared=" + mBlobBytesShared);
+            pw.println("  priorityHints=" + mPriorityHints.size()
+                    + " prioritized=" + mPrioritizedCount
+                    + " avgTimeToPreviewMs=" + (mPrioritizedCount > 0
+                            ? mPrioritizedTotalMs / mPrioritizedCount : 0)
+                    + " maxTimeToPreviewMs=" + mPrioritizedMaxMs);
+            for (Map.Entry<String, long[]> entry : mGeneratorTimes.entrySet()) {
+                final long[] times = entry.getValue();
+                pw.println("  generator " + entry.getKey() + ": runs=" + times[0]
+                        + " avgMs=" + (times[1] / times[0]) + " maxMs=" + times[2]);
+            }
+        }
+        PreviewGenerators.dump(pw);
+        BitmapBudget.getInstance().dump(pw);
+        if (mRendererPool != null) {
+            mRendererPool.dump(pw);
+        }
+        mMetrics.dump(pw);
+    }
+
+    /**
+     * Resizes the generator executor to its usual size plus the threads held by cancelled
+     * generators, so that those do not count against it.  Repeated timeouts of a theme's
+     * generator are backed off by the provider, which bounds how many threads can be stuck.
+     * @param delta 1 when a thread is abandoned, -1 when its generator finally returns
+     */
+    private synchronized void updateAbandonedThreads(int delta) {
+        mAbandonedThreads += delta;
+        mMaxAbandonedThreads = Math.max(mMaxAbandonedThreads, mAbandonedThreads);
+        final int threads = mGeneratorThreads + mAbandonedThreads;
+        // The maximum may never drop below the core size, so the order depends on the direction
+        if (delta > 0) {
+            mGeneratorExecutor.setMaximumPoolSize(threads);
+            mGeneratorExecutor.setCorePoolSize(threads);
+        } else {
+            mGeneratorExecutor.setCorePoolSize(threads);
+            mGeneratorExecutor.setMaximumPoolSize(threads);
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static ThreadPoolExecutor createExecutor(final String name, int threads,
+            BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue, new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "PreviewPipeline-" + name + "-" + mCount.incrementAndGet());
+                    }
+                }, BLOCKING_POLICY);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Blocks the submitting stage until the next stage has room, rather than rejecting work.
+     */
+    private static final RejectedExecutionHandler BLOCKING_POLICY =
+            new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                Log.w(TAG, "Dropping preview work after shutdown");
+                return;
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    /**
+     * A single stage of the pipeline.  Jobs that fail or are skipped by a stage leave the
+     * pipeline there, otherwise they are handed to the next stage.
+     */
+    private abstract class StageTask {
+        private final String mName;
+
+        StageTask(String name) {
+            mName = name;
+        }
+
+        abstract boolean process(PreviewJob job);
+
+        abstract void next(PreviewJob job);
+
+        Runnable forJob(final PreviewJob job) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (runStage(job, StageTask.this)) {
+                        next(job);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * A stage that processes a single component of a theme.  A component that fails a stage is
+     * still passed on, without any previews, so that it is committed and the theme completes.
+     */
+    private abstract class ComponentStage {
+        private final String mName;
+
+        ComponentStage(String name) {
+            mName = name;
+        }
+
+        abstract void process(GeneratorTask task);
+
+        abstract void next(GeneratorTask task);
+
+        Runnable forTask(final GeneratorTask task) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process(task);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Failed to " + mName + " " + task.mName + " previews for "
+                                + task.mJob.pkgName, e);
+                        task.mItems.clear();
+                        task.mFailed = true;
+                    }
+                    next(task);
+                }
+            };
+        }
+    }
+
+    /**
+     * Runs a single preview generator for a theme and times it.  Failures are logged and leave
+     * the task without any items so that the other components can still be persisted.
+     *
+     * The task is handed on to the encode stage exactly once, either by the generator when it
+     * returns or by the render stage when the generator misses its deadline, see
+     * {@link #cancel}.  A generator that returns after that has its previews dropped.
+     */
+    private class GeneratorTask implements Runnable {
+        final PreviewGenerator mGenerator;
+        final String mName;
+        final PreviewJob mJob;
+        // Whether the theme modifies the components this generator previews
+        final boolean mEnabled;
+        // MODIFIES_* columns whose assets this generator's previews are built from
+        final String[] mComponents;
+        // Preview keys this generator produces
+        final String[] mKeys;
+        final List<PreviewItem> mItems = new ArrayList<PreviewItem>();
+        volatile long mDurationMs;
+        volatile boolean mFailed;
+        // Set when the component is not committed and left in the work table to be retried
+        volatile boolean mRetry;
+        volatile boolean mTimedOut;
+        // Uptime when the generator started running, 0 before that
+        volatile long mStartedAt;
+        // Thread running the task, null before it starts and once it has returned.  Guarded by
+        // mThreadLock so that a cancellation never interrupts the thread's next task.
+        private final Object mThreadLock = new Object();
+        private Thread mThread;
+        // Set when the thread is left running a cancelled generator in this process, guarded
+        // by mThreadLock
+        private boolean mAbandoned;
+        final AtomicBoolean mHandedOn = new AtomicBoolean();
+        // Metrics for the component, each written by the stage that measures it
+        int mBitmaps;
+        long mBitmapBytes;
+        long mEncodeMs;
+        long mPersistMs;
+        long mBytesWritten;
+        // Bitmap bytes held from the budget until the component is encoded
+        long mReservedBytes;
+        // Set when the existing previews are still valid and the generator was not run
+        boolean mKept;
+        // Set when the generator was not run because it failed recently, see
+        // ThemesOpenHelper.PreviewFailuresTable
+        boolean mSuppressed;
+        // Set when the theme ships the previews, which are then imported rather than rendered
+        volatile boolean mImported;
+
+        GeneratorTask(PreviewGenerator generator, PreviewJob job) {
+            mGenerator = generator;
+            mName = generator.getName();
+            mJob = job;
+            mComponents = generator.getCapabilities();
+            mKeys = generator.getPreviewKeys();
+            boolean enabled = false;
+            for (String component : mComponents) {
+                enabled |= job.capabilities.contains(component);
+            }
+            mEnabled = enabled;
+            mImported = enabled && job.shippedPreviews != null
+                    && job.shippedPreviews.covers(mKeys);
+        }
+
+        boolean isUnchanged() {
+            final String fingerprint = mJob.fingerprints.get(mName);
+            return fingerprint != null
+                    && fingerprint.equals(mJob.previousFingerprints.getString(mName));
+        }
+
+        /**
+         * Runs the generator into items, which are only handed to the task if it is not
+         * cancelled in the meantime.
+         */
+        private PreviewRendererPool.RenderStats generate(List<PreviewItem> items)
+                throws Exception {
+            if (mImported) {
+                try {
+                    mJob.shippedPreviews.read(mJob.themeContext.getAssets(), mKeys, items);
+                    return new PreviewRendererPool.RenderStats();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to import " + mName + " previews shipped by "
+                            + mJob.pkgName + ", rendering them instead", e);
+                    items.clear();
+                    mImported = false;
+                }
+            }
+            if (mRendererPool != null) {
+                // The bitmaps were encoded, and recycled, in the renderer process
+                return mRendererPool.render(mName, mJob.pkgName, items);
+            }
+            mGenerator.generate(mContext, mJob.pkgName, mJob.info, mJob.themeContext, items);
+            PreviewRendererPool.RenderStats stats = new PreviewRendererPool.RenderStats();
+            for (PreviewItem item : items) {
+                if (item.bitmap != null) {
+                    stats.bitmaps++;
+                    stats.bitmapBytes += item.bitmap.getByteCount();
+                }
+            }
+            return stats;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mThreadLock) {
+                mThread = Thread.currentThread();
+            }
+            final BitmapBudget budget = BitmapBudget.getInstance();
+            final List<PreviewItem> items = new ArrayList<PreviewItem>();
+            PreviewRendererPool.RenderStats stats = null;
+            Exception error = null;
+            long start = SystemClock.uptimeMillis();
+            try {
+                // Imported previews are already encoded and never need any bitmap memory
+                mReservedBytes = budget.acquire(mImported ? 0 : getBitmapEstimate(mName));
+                // Time spent waiting for the budget is not the generator's
+                start = SystemClock.uptimeMillis();
+                mStartedAt = start;
+                stats = generate(items);
+                recordBitmapBytes(mName, stats.bitmapBytes);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                final boolean cancelled = !mHandedOn.compareAndSet(false, true);
+                if (!cancelled) {
+                    onGenerated(items, stats, error, SystemClock.uptimeMillis() - start);
+                }
+                synchronized (mThreadLock) {
+                    mThread = null;
+                    if (cancelled) {
+                        // Possibly interrupted after the generator had returned
+                        Thread.interrupted();
+                    }
+                    if (mAbandoned) {
+                        mAbandoned = false;
+                        updateAbandonedThreads(-1);
+                    }
+                }
+            }
+        }
+
+        private void onGenerated(List<PreviewItem> items, PreviewRendererPool.RenderStats stats,
+                Exception error, long durationMs) {
+            if (error instanceof PreviewRendererPool.RendererDiedException) {
+                // Possibly brought down by another theme, so give the component another go
+                Log.w(TAG, "Lost " + mName + " previews for " + mJob.pkgName + ": "
+                        + error.getMessage());
+                mFailed = true;
+                mRetry = true;
+            } else if (error != null) {
+                Log.e(TAG, "Unable to create " + mName + " previews for " + mJob.pkgName, error);
+                mFailed = true;
+            } else {
+                mItems.addAll(items);
+                mBitmaps = stats.bitmaps;
+                mBitmapBytes = stats.bitmapBytes;
+            }
+            // Hold on to what the bitmaps actually take until they are encoded, which for a
+            // renderer process is nothing once it has returned
+            final long resident = mRendererPool != null ? 0 : mBitmapBytes;
+            final BitmapBudget budget = BitmapBudget.getInstance();
+            if (resident > mReservedBytes) {
+                budget.charge(resident - mReservedBytes);
+            } else {
+                budget.release(mReservedBytes - resident);
+            }
+            mReservedBytes = resident;
+            mDurationMs = durationMs;
+            mJob.rendered.add(this);
+        }
+
+        /**
+         * Gives up on a generator that missed its deadline and hands the component on to be
+         * retried later.  Does nothing if the generator has returned already.
+         */
+        void cancel(long now) {
+            if (!mHandedOn.compareAndSet(false, true)) return;
+            mDurationMs = now - mStartedAt;
+            Log.w(TAG, "Cancelling " + mName + " previews for " + mJob.pkgName + " after "
+                    + mDurationMs + "ms");
+            mTimedOut = true;
+            mRetry = true;
+            synchronized (PreviewPipeline.this) {
+                mTimeouts++;
+            }
+            // Whatever the generator still allocates is not accounted for
+            BitmapBudget.getInstance().release(mReservedBytes);
+            mReservedBytes = 0;
+            synchronized (mThreadLock) {
+                if (mThread != null) {
+                    mThread.interrupt();
+                    // A renderer process is killed, whereas this process's thread stays taken
+                    // until the generator notices the interrupt, if it ever does
+                    if (mRendererPool == null) {
+                        mAbandoned = true;
+                        updateAbandonedThreads(1);
+                    }
+                }
+            }
+            mJob.rendered.add(this);
+        }
+    }
+
+    private static class PreviewJob {
+        final String action;
+        final String pkgName;
+        final Callback callback;
+        final boolean isSystemTheme;
+        final long queuedAt = SystemClock.elapsedRealtime();
+        // Uptime when the job started being resolved and how long resolving took
+        long startedAt;
+        long resolveMs;
+        // Components whose generator has finished, in the order they finished
+        final BlockingQueue<GeneratorTask> rendered = new LinkedBlockingQueue<GeneratorTask>();
+        // Components that have not been committed yet
+        final AtomicInteger pendingComponents = new AtomicInteger();
+
+        int themeId;
+        PackageInfo info;
+        // Shared by the generators that read from the theme's own assets, null for the system
+        // theme
+        Context themeContext;
+        // MODIFIES_* columns set for the theme
+        final Set<String> capabilities = new HashSet<String>();
+        // Fingerprints by generator name of the theme's current assets and of those its existing
+        // previews were generated from, the latter only for updates
+        Map<String, String> fingerprints;
+        Bundle previousFingerprints;
+        // Generators whose components were not committed by an interrupted run being resumed
+        Set<String> resumedGenerators;
+        // Fingerprint of the theme's APK and the generators that are not to be run for it yet
+        String apkFingerprint;
+        Set<String> suppressedGenerators;
+        // Previews the theme ships pre-rendered, if any
+        ShippedPreviews shippedPreviews;
+        boolean hasSuppressed;
+        List<GeneratorTask> generators;
+
+        PreviewJob(String action, String pkgName, Callback callback) {
+            this.action = action;
+            this.pkgName = pkgName;
+            this.callback = callback;
+            this.isSystemTheme = ThemeConfig.SYSTEM_DEFAULT.equals(pkgName);
+        }
+
+        /**
+         * @return True if only the components whose assets changed need to be regenerated
+         */
+        boolean isIncremental() {
+            return fingerprints != null && previousFingerprints != null
+                    && !previousFingerprints.isEmpty();
+        }
+
+        /**
+         * @return True if some of the theme's existing previews are kept, including those of
+         *         components that were not committed because their generator failed
+         */
+        boolean isPartial() {
+            if (isIncremental() || resumedGenerators != null || hasSuppressed) return true;
+            if (generators != null) {
+                for (GeneratorTask task : generators) {
+                    if (task.mRetry || task.mFailed) return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.res.ThemeConfig;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.MemoryFile;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import org.cyanogenmod.themes.provider.util.PreviewItem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs preview generators on behalf of {@link PreviewRendererPool}, in a process of its own so
+ * that a theme which exhausts the heap or crashes native code only takes down this process and
+ * not the provider.  Previews are encoded here and handed back as a single shared memory
+ * region, with the position of each preview in it.
+ *
+ * Each process of the pool needs its own component, which is what the Worker subclasses are.
+ */
+public class PreviewRenderService extends Service {
+    private static final String TAG = PreviewRenderService.class.getSimpleName();
+
+    static final int MSG_RENDER = 1;
+    static final int MSG_RENDER_RESULT = 2;
+
+    // Request
+    static final String EXTRA_GENERATOR = "generator";
+    static final String EXTRA_PKG_NAME = "pkg_name";
+    // Result
+    static final String EXTRA_ERROR = "error";
+    static final String EXTRA_KEYS = "keys";
+    static final String EXTRA_COMPONENT_IDS = "component_ids";
+    static final String EXTRA_VALUES = "values";
+    static final String EXTRA_OFFSETS = "offsets";
+    static final String EXTRA_LENGTHS = "lengths";
+    static final String EXTRA_DATA = "data";
+    static final String EXTRA_BITMAPS = "bitmaps";
+    static final String EXTRA_BITMAP_BYTES = "bitmap_bytes";
+
+    static final int RENDER_THREADS = 2;
+
+    public static class Worker0 extends PreviewRenderService {
+    }
+
+    public static class Worker1 extends PreviewRenderService {
+    }
+
+    private ExecutorService mExecutor;
+    private Messenger mMessenger;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mExecutor = Executors.newFixedThreadPool(RENDER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+        mMessenger = new Messenger(new Handler() {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what != MSG_RENDER) return;
+                final int requestId = msg.arg1;
+                final Messenger replyTo = msg.replyTo;
+                final Bundle request = msg.getData();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        reply(replyTo, requestId, render(
+                                request.getString(EXTRA_GENERATOR),
+                                request.getString(EXTRA_PKG_NAME)));
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    private Bundle render(String generator, String pkgName) {
+        final Bundle result = new Bundle();
+        final List<PreviewItem> items = new ArrayList<PreviewItem>();
+        try {
+            PackageInfo info = null;
+            Context themeContext = null;
+            if (!ThemeConfig.SYSTEM_DEFAULT.equals(pkgName)) {
+                info = getPackageManager().getPackageInfo(pkgName, 0);
+                themeContext = createPackageContext(pkgName, 0);
+            }
+            PreviewGenerators.get(generator).generate(this, pkgName, info, themeContext, items);
+
+            int bitmaps = 0;
+            long bitmapBytes = 0;
+            int dataSize = 0;
+            for (PreviewItem item : items) {
+                if (item.bitmap != null) {
+                    bitmaps++;
+                    bitmapBytes += item.bitmap.getByteCount();
+                }
+                item.encode();
+                if (item.isImage && item.data != null) {
+                    dataSize += item.data.length;
+                }
+            }
+            result.putInt(EXTRA_BITMAPS, bitmaps);
+            result.putLong(EXTRA_BITMAP_BYTES, bitmapBytes);
+            writeItems(result, items, dataSize);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to create " + generator + " previews for " + pkgName, e);
+            result.putString(EXTRA_ERROR, e.toString());
+        }
+        return result;
+    }
+
+    private static void writeItems(Bundle result, List<PreviewItem> items, int dataSize)
+            throws IOException {
+        final int count = items.size();
+        final String[] keys = new String[count];
+        final int[] componentIds = new int[count];
+        final String[] values = new String[count];
+        // Images are stored back to back in the shared memory, other previews have no data
+        final int[] offsets = new int[count];
+        final int[] lengths = new int[count];
+        final MemoryFile memory = dataSize > 0 ? new MemoryFile(TAG, dataSize) : null;
+        try {
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                final PreviewItem item = items.get(i);
+                keys[i] = item.key;
+                componentIds[i] = item.componentId;
+                values[i] = item.value;
+                offsets[i] = offset;
+                lengths[i] = -1;
+                if (item.isImage && item.data != null) {
+                    memory.writeBytes(item.data, 0, offset, item.data.length);
+                    lengths[i] = item.data.length;
+                    offset += item.data.length;
+                }
+            }
+            if (memory != null) {
+                result.putParcelable(EXTRA_DATA,
+                        ParcelFileDescriptor.dup(memory.getFileDescriptor()));
+            }
+        } finally {
+            // The region lives on for as long as the descriptor handed out refers to it
+            if (memory != null) {
+                memory.close();
+            }
+        }
+        result.putStringArray(EXTRA_KEYS, keys);
+        result.putIntArray(EXTRA_COMPONENT_IDS, componentIds);
+        result.putStringArray(EXTRA_VALUES, values);
+        result.putIntArray(EXTRA_OFFSETS, offsets);
+        result.putIntArray(EXTRA_LENGTHS, lengths);
+    }
+
+    private static void reply(Messenger replyTo, int requestId, Bundle result) {
+        Message reply = Message.obtain(null, MSG_RENDER_RESULT, requestId, 0);
+        reply.setData(result);
+        try {
+            replyTo.send(reply);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Unable to return previews", e);
+        } finally {
+            ParcelFileDescriptor data = result.getParcelable(EXTRA_DATA);
+            if (data != null) {
+                try {
+                    data.close();
+                } catch (IOException e) {
+                    // Nothing left to do with it
+                }
+            }
+        }
+    }
+}
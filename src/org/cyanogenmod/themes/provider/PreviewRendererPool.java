@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.cyanogenmod.themes.provider.util.PreviewItem;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs preview generators in a pool of {@link PreviewRenderService} processes.  Requests are
+ * spread over the pool by how busy each process is, and a process that dies only fails the
+ * requests it was running.  The system restarts it for the requests that follow.
+ *
+ * A request whose caller is interrupted is abandoned, and since a generator cannot be stopped
+ * from the outside, the process running it is killed.
+ */
+class PreviewRendererPool {
+    private static final String TAG = PreviewRendererPool.class.getSimpleName();
+
+    private static final Class<?>[] WORKER_CLASSES = {
+            PreviewRenderService.Worker0.class, PreviewRenderService.Worker1.class };
+    private static final long BIND_TIMEOUT_MS = 10 * 1000;
+    // How long past the generator's deadline a result is waited for.  The render stage cancels
+    // the request at the deadline, so this only bounds the wait if a reply is never sent.
+    private static final long RESULT_GRACE_MS = 10 * 1000;
+
+    /**
+     * What a generator produced before its previews were encoded.
+     */
+    static class RenderStats {
+        int bitmaps;
+        long bitmapBytes;
+    }
+
+    /**
+     * Thrown for requests that failed because their renderer process died, which may have been
+     * caused by another request running in it.
+     */
+    static class RendererDiedException extends IOException {
+        RendererDiedException(String message) {
+            super(message);
+        }
+    }
+
+    private final Context mContext;
+    private final Worker[] mWorkers;
+    private final Messenger mReplyMessenger;
+
+    // Requests waiting for a result, keyed by id, guarded by this
+    private final Map<Integer, Request> mRequests = new HashMap<Integer, Request>();
+    private int mNextRequestId;
+
+    // Statistics, guarded by this
+    private int mRendered;
+    private int mFailed;
+    private int mWorkerDeaths;
+    private int mWorkerKills;
+
+    PreviewRendererPool(Context context) {
+        mContext = context;
+        mWorkers = new Worker[WORKER_CLASSES.length];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(WORKER_CLASSES[i]);
+        }
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mReplyMessenger = new Messenger(new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what != PreviewRenderService.MSG_RENDER_RESULT) return;
+                final Request request;
+                synchronized (PreviewRendererPool.this) {
+                    request = mRequests.remove(msg.arg1);
+                }
+                if (request != null) {
+                    request.complete(msg.getData(), null);
+                }
+            }
+        });
+    }
+
+    int getSize() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Runs the generator in one of the renderer processes and blocks until it is done.
+     * @param out Receives the encoded previews
+     */
+    RenderStats render(String generator, String pkgName, List<PreviewItem> out)
+            throws IOException, InterruptedException {
+        final Request request;
+        final Worker worker;
+        synchronized (this) {
+            worker = pickWorker();
+            request = new Request(mNextRequestId++, worker);
+            mRequests.put(request.id, request);
+            worker.mOutstanding++;
+        }
+        try {
+            final Messenger service = worker.connect();
+            Bundle data = new Bundle();
+            data.putString(PreviewRenderService.EXTRA_GENERATOR, generator);
+            data.putString(PreviewRenderService.EXTRA_PKG_NAME, pkgName);
+            Message msg = Message.obtain(null, PreviewRenderService.MSG_RENDER, request.id, 0);
+            msg.replyTo = mReplyMessenger;
+            msg.setData(data);
+            try {
+                service.send(msg);
+            } catch (RemoteException e) {
+                throw new IOException("Renderer " + worker.mName + " is gone", e);
+            }
+            final Bundle result;
+            try {
+                result = request.await(
+                        PreviewGenerators.get(generator).getDeadlineMs() + RESULT_GRACE_MS);
+            } catch (InterruptedException e) {
+                kill(worker);
+                throw e;
+            }
+            final RenderStats stats = readResult(result, out);
+            synchronized (this) {
+                mRendered++;
+            }
+            return stats;
+        } catch (IOException e) {
+            synchronized (this) {
+                mFailed++;
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                mRequests.remove(request.id);
+                worker.mOutstanding--;
+            }
+        }
+    }
+
+    private Worker pickWorker() {
+        Worker best = mWorkers[0];
+        for (Worker worker : mWorkers) {
+            if (worker.mOutstanding < best.mOutstanding) {
+                best = worker;
+            }
+        }
+        return best;
+    }
+
+    private static RenderStats readResult(Bundle result, List<PreviewItem> out)
+            throws IOException {
+        final String error = result.getString(PreviewRenderService.EXTRA_ERROR);
+        if (error != null) {
+            throw new IOException(error);
+        }
+        final String[] keys = result.getStringArray(PreviewRenderService.EXTRA_KEYS);
+        final int[] componentIds = result.getIntArray(PreviewRenderService.EXTRA_COMPONENT_IDS);
+        final String[] values = result.getStringArray(PreviewRenderService.EXTRA_VALUES);
+        final int[] offsets = result.getIntArray(PreviewRenderService.EXTRA_OFFSETS);
+        final int[] lengths = result.getIntArray(PreviewRenderService.EXTRA_LENGTHS);
+
+        int dataSize = 0;
+        for (int length : lengths) {
+            dataSize += Math.max(length, 0);
+        }
+        final byte[] data = new byte[dataSize];
+        final ParcelFileDescriptor pfd = result.getParcelable(PreviewRenderService.EXTRA_DATA);
+        if (pfd != null) {
+            DataInputStream in = new DataInputStream(
+                    new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (lengths[i] >= 0) {
+                byte[] image = new byte[lengths[i]];
+                System.arraycopy(data, offsets[i], image, 0, lengths[i]);
+                out.add(PreviewItem.fromData(keys[i], componentIds[i], image));
+            } else {
+                out.add(PreviewItem.fromValue(keys[i], componentIds[i], values[i]));
+            }
+        }
+
+        RenderStats stats = new RenderStats();
+        stats.bitmaps = result.getInt(PreviewRenderService.EXTRA_BITMAPS);
+        stats.bitmapBytes = result.getLong(PreviewRenderService.EXTRA_BITMAP_BYTES);
+        return stats;
+    }
+
+    /**
+     * Unbinds from the renderer processes so the system can reclaim them.  They are bound
+     * again by the next request.  Processes that are running requests are kept, since the
+     * caller may have decided it was idle before new requests came in.
+     */
+    synchronized void release() {
+        for (Worker worker : mWorkers) {
+            if (worker.mOutstanding == 0) {
+                worker.disconnect();
+            }
+        }
+    }
+
+    private void kill(Worker worker) {
+        final int pid = worker.getPid();
+        if (pid <= 0) return;
+        Log.w(TAG, "Killing renderer " + worker.mName + " (pid " + pid + ")");
+        synchronized (this) {
+            mWorkerKills++;
+        }
+        Process.killProcess(pid);
+    }
+
+    private void onWorkerDied(Worker worker) {
+        synchronized (this) {
+            mWorkerDeaths++;
+            for (Request request : mRequests.values()) {
+                if (request.worker == worker) {
+                    request.complete(null, new RendererDiedException(
+                            "Renderer " + worker.mName + " died"));
+                }
+            }
+        }
+        Log.w(TAG, "Renderer " + worker.mName + " died");
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        StringBuilder sb = new StringBuilder("  renderers:");
+        for (Worker worker : mWorkers) {
+            sb.append(' ').append(worker.mName).append(worker.mService != null ? "(up," : "(down,")
+                    .append(worker.mOutstanding).append(')');
+        }
+        pw.println(sb);
+        pw.println("  rendered=" + mRendered + " failed=" + mFailed
+                + " rendererDeaths=" + mWorkerDeaths + " rendererKills=" + mWorkerKills);
+    }
+
+    private class Worker implements ServiceConnection, IBinder.DeathRecipient {
+        final Class<?> mClass;
+        final String mName;
+        // Guarded by the pool
+        int mOutstanding;
+
+        // Guarded by this
+        private boolean mBound;
+        private volatile Messenger mService;
+
+        Worker(Class<?> cls) {
+            mClass = cls;
+            mName = cls.getSimpleName();
+        }
+
+        /**
+         * @return Pid of the worker's process, or 0 if it is not running
+         */
+        int getPid() {
+            final String processName;
+            try {
+                processName = mContext.getPackageManager().getServiceInfo(
+                        new ComponentName(mContext, mClass), 0).processName;
+            } catch (NameNotFoundException e) {
+                return 0;
+            }
+            ActivityManager am =
+                    (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+            List<ActivityManager.RunningAppProcessInfo> processes = am.getRunningAppProcesses();
+            if (processes == null) return 0;
+            for (ActivityManager.RunningAppProcessInfo process : processes) {
+                if (processName.equals(process.processName)) {
+                    return process.pid;
+                }
+            }
+            return 0;
+        }
+
+        synchronized Messenger connect() throws IOException, InterruptedException {
+            if (!mBound) {
+                mBound = mContext.bindService(new Intent(mContext, mClass), this,
+                        Context.BIND_AUTO_CREATE);
+                if (!mBound) {
+                    throw new IOException("Unable to bind renderer " + mName);
+                }
+            }
+            final long deadline = SystemClock.uptimeMillis() + BIND_TIMEOUT_MS;
+            while (mService == null) {
+                final long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out connecting to renderer " + mName);
+                }
+                wait(remaining);
+            }
+            return mService;
+        }
+
+        synchronized void disconnect() {
+            if (mBound) {
+                mContext.unbindService(this);
+                mBound = false;
+                mService = null;
+            }
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            try {
+                binder.linkToDeath(this, 0);
+            } catch (RemoteException e) {
+                // Already dead, the system reconnects once it has restarted
+                return;
+            }
+            synchronized (this) {
+                mService = new Messenger(binder);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            synchronized (this) {
+                mService = null;
+            }
+        }
+
+        @Override
+        public void binderDied() {
+            synchronized (this) {
+                mService = null;
+            }
+            onWorkerDied(this);
+        }
+    }
+
+    private static class Request {
+        final int id;
+        final Worker worker;
+        private Bundle mResult;
+        private IOException mError;
+        private boolean mDone;
+
+        Request(int id, Worker worker) {
+            this.id = id;
+            this.worker = worker;
+        }
+
+        synchronized void complete(Bundle result, IOException error) {
+            mResult = result;
+            mError = error;
+            mDone = true;
+            notifyAll();
+        }
+
+        synchronized Bundle await(long timeoutMs) throws IOException, InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + timeoutMs;
+            while (!mDone) {
+                final long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for renderer " + worker.mName);
+                }
+                wait(remaining);
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return mResult;
+        }
+    }
+}
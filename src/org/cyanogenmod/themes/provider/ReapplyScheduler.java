@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Debounces requests to reapply the components of updated themes.  When several applied themes
+ * finish updating together, i.e. during a batch update from an app store, their reapplies are
+ * merged into a single theme change instead of one system wide reapply per theme.
+ */
+public class ReapplyScheduler {
+    private static final String TAG = ReapplyScheduler.class.getSimpleName();
+
+    // How long to wait for further updates before reapplying
+    private static final long DEBOUNCE_MS = 500;
+    // Upper bound on how long the first reapply in a batch can be held back
+    private static final long MAX_DELAY_MS = 3000;
+
+    private static ReapplyScheduler sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Set<String> mPendingReapplies = new LinkedHashSet<String>();
+    private long mFirstPendingTime;
+
+    // Metrics
+    private int mRequestedCount;
+    private int mExecutedCount;
+
+    private final Runnable mReapplyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reapply();
+        }
+    };
+
+    public static synchronized ReapplyScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ReapplyScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ReapplyScheduler(Context context) {
+        mContext = context;
+        mHandler = BackgroundThread.getHandler();
+    }
+
+    /**
+     * Schedules any currently applied components of the given theme to be reapplied.
+     */
+    public void scheduleReapply(String pkgName) {
+        synchronized (mPendingReapplies) {
+            final long now = SystemClock.uptimeMillis();
+            if (mPendingReapplies.isEmpty()) {
+                mFirstPendingTime = now;
+            }
+            mPendingReapplies.add(pkgName);
+            mRequestedCount++;
+            mHandler.removeCallbacks(mReapplyRunnable);
+            final long deadline = Math.min(now + DEBOUNCE_MS, mFirstPendingTime + MAX_DELAY_MS);
+            mHandler.postAtTime(mReapplyRunnable, deadline);
+        }
+    }
+
+    private void reapply() {
+        Set<String> pkgNames;
+        synchronized (mPendingReapplies) {
+            if (mPendingReapplies.isEmpty()) return;
+            pkgNames = new LinkedHashSet<String>(mPendingReapplies);
+            mPendingReapplies.clear();
+            mExecutedCount++;
+        }
+        Log.d(TAG, "Reapplying components for " + pkgNames);
+        ThemePackageHelper.reapplyInstalledComponentsForThemes(mContext, pkgNames);
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mPendingReapplies) {
+            pw.println("ReapplyScheduler:");
+            pw.println("  requested=" + mRequestedCount + " executed=" + mExecutedCount
+                    + " pending=" + mPendingReapplies.size());
+        }
+    }
+
+    public void writeStats(Bundle stats) {
+        synchronized (mPendingReapplies) {
+            stats.putInt("reapplies_requested", mRequestedCount);
+            stats.putInt("reapplies_executed", mExecutedCount);
+        }
+    }
+}
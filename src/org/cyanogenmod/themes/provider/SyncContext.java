@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import cyanogenmod.themes.ThemeManager;
+
+import org.cyanogenmod.internal.util.ThemeUtils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memoizes the package manager, settings and theme manager lookups made while reconciling the
+ * provider with the installed packages so each one is only made once per pass.  Instances are
+ * not thread safe and should not outlive the pass they were created for.
+ */
+public class SyncContext {
+    private final Context mContext;
+    private final Map<String, PackageInfo> mPackageInfos = new HashMap<String, PackageInfo>();
+    private final Map<String, Boolean> mProcessingStates = new HashMap<String, Boolean>();
+    private String mDefaultThemePkgName;
+    private ThemeManager mThemeManager;
+    private int mIpcCount;
+
+    public SyncContext(Context context) {
+        mContext = context;
+    }
+
+    public Context getContext() {
+        return mContext;
+    }
+
+    /**
+     * Returns all installed packages and caches them so later calls to
+     * {@link #getPackageInfo(String)} for any of them do not go back to the package manager.
+     */
+    public List<PackageInfo> getInstalledPackages() {
+        mIpcCount++;
+        List<PackageInfo> packages = mContext.getPackageManager().getInstalledPackages(0);
+        for (PackageInfo info : packages) {
+            mPackageInfos.put(info.packageName, info);
+        }
+        return packages;
+    }
+
+    public PackageInfo getPackageInfo(String pkgName) throws NameNotFoundException {
+        PackageInfo pi = mPackageInfos.get(pkgName);
+        if (pi == null) {
+            mIpcCount++;
+            pi = mContext.getPackageManager().getPackageInfo(pkgName, 0);
+            mPackageInfos.put(pkgName, pi);
+        }
+        return pi;
+    }
+
+    public String getDefaultThemePackageName() {
+        if (mDefaultThemePkgName == null) {
+            mIpcCount++;
+            mDefaultThemePkgName = ThemeUtils.getDefaultThemePackageName(mContext);
+        }
+        return mDefaultThemePkgName;
+    }
+
+    /**
+     * Queries the processing state of all the given packages up front, which keeps the theme
+     * manager calls for a pass together rather than interleaved with provider writes.
+     */
+    public void prefetchProcessingStates(Collection<String> pkgNames) {
+        for (String pkgName : pkgNames) {
+            isThemeBeingProcessed(pkgName);
+        }
+    }
+
+    public boolean isThemeBeingProcessed(String pkgName) {
+        Boolean processing = mProcessingStates.get(pkgName);
+        if (processing == null) {
+            if (mThemeManager == null) {
+                mThemeManager = ThemeManager.getInstance(mContext);
+            }
+            mIpcCount++;
+            processing = mThemeManager.isThemeBeingProcessed(pkgName);
+            mProcessingStates.put(pkgName, processing);
+        }
+        return processing;
+    }
+
+    /**
+     * @return The number of package manager, settings and theme manager calls made so far
+     */
+    public int getIpcCount() {
+        return mIpcCount;
+    }
+}
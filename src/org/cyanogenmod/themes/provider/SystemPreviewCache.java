@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.ThemeConfig;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import cyanogenmod.providers.ThemesContract.PreviewColumns;
+import cyanogenmod.providers.ThemesContract.ThemesColumns;
+
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewBlobsTable;
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewsTable;
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.ThemesTable;
+import org.cyanogenmod.themes.provider.util.BootAnimationPreviewGenerator;
+import org.cyanogenmod.themes.provider.util.PreviewBlobStore;
+import org.cyanogenmod.themes.provider.util.PreviewUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copy of the system theme's previews kept outside of the database, so that they survive the
+ * database being recreated.  The system theme's previews only change with the system image, so
+ * when the database is created and the copy was made for the same system image, its rows are
+ * restored instead of generating the previews all over again.
+ *
+ * The copy is a list of preview rows in files/previews/system_previews.json, together with the
+ * key it was made under.  Images are stored as the hashes of their blobs, which outlive the
+ * database in the {@link PreviewBlobStore}.  The key is made from the build fingerprint, the
+ * files the default wallpaper and boot animation come from, and the display the previews were
+ * sized for.
+ */
+class SystemPreviewCache {
+    private static final String TAG = SystemPreviewCache.class.getSimpleName();
+
+    private static final String CACHE_FILE = "system_previews.json";
+    // Holds the default wallpaper
+    private static final String FRAMEWORK_RES_PATH = "/system/framework/framework-res.apk";
+    private static final int MAX_CACHE_BYTES = 256 * 1024;
+
+    private static final String KEY_CACHE_KEY = "cache_key";
+    private static final String KEY_PREVIEWS = "previews";
+    private static final String KEY_KEY = "key";
+    private static final String KEY_COMPONENT_ID = "component_id";
+    private static final String KEY_VALUE = "value";
+    private static final String KEY_BLOB = "blob";
+
+    /**
+     * @return Key the system theme's current previews belong under
+     */
+    static String getCacheKey(Context context) {
+        final DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        return Build.FINGERPRINT + "|" + getFileStamp(FRAMEWORK_RES_PATH) + "|"
+                + getFileStamp(BootAnimationPreviewGenerator.SYSTEM_BOOT_ANI_PATH) + "|"
+                + dm.widthPixels + "x" + dm.heightPixels + "@" + dm.densityDpi;
+    }
+
+    private static String getFileStamp(String path) {
+        final File file = new File(path);
+        return file.length() + ":" + file.lastModified();
+    }
+
+    private static File getCacheFile(Context context) {
+        return new File(PreviewUtils.getPreviewsDir(context.getFilesDir().getAbsolutePath()),
+                CACHE_FILE);
+    }
+
+    /**
+     * Copies the system theme's previews as they are in the database.
+     */
+    static void save(Context context, SQLiteDatabase db) {
+        final JSONObject root = new JSONObject();
+        final JSONArray previews = new JSONArray();
+        Cursor c = db.rawQuery("SELECT p." + PreviewColumns.COL_KEY + ", p."
+                + PreviewColumns.COMPONENT_ID + ", p." + PreviewColumns.COL_VALUE + ", b."
+                + PreviewBlobsTable.COL_HASH + " FROM " + PreviewsTable.TABLE_NAME + " p JOIN "
+                + ThemesTable.TABLE_NAME + " t ON t." + ThemesColumns._ID + "=p."
+                + PreviewColumns.THEME_ID + " LEFT JOIN " + PreviewBlobsTable.TABLE_NAME
+                + " b ON b." + PreviewBlobsTable.COL_PATH + "=p." + PreviewColumns.COL_VALUE
+                + " WHERE t." + ThemesColumns.PKG_NAME + "=?",
+                new String[] { ThemeConfig.SYSTEM_DEFAULT });
+        if (c == null) return;
+        try {
+            while (c.moveToNext()) {
+                JSONObject preview = new JSONObject();
+                preview.put(KEY_KEY, c.getString(0));
+                preview.put(KEY_COMPONENT_ID, c.getInt(1));
+                if (!c.isNull(3)) {
+                    preview.put(KEY_BLOB, c.getString(3));
+                } else if (!c.isNull(2)) {
+                    preview.put(KEY_VALUE, c.getString(2));
+                }
+                previews.put(preview);
+            }
+            root.put(KEY_CACHE_KEY, getCacheKey(context));
+            root.put(KEY_PREVIEWS, previews);
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to save the system theme's previews", e);
+            return;
+        } finally {
+            c.close();
+        }
+        if (previews.length() == 0) return;
+
+        // Written under a temporary name and renamed into place, so the copy is always complete
+        final File file = getCacheFile(context);
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(root.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save the system theme's previews", e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Inserts the saved previews for the system theme, which must already be in the database.
+     * @return True if the previews were restored, false if they have to be generated because
+     *         there is no copy of them for the current system image or it is incomplete
+     */
+    static boolean restore(Context context, SQLiteDatabase db) {
+        final File file = getCacheFile(context);
+        if (!file.exists()) return false;
+
+        final String filesDir = context.getFilesDir().getAbsolutePath();
+        final PreviewBlobStore blobStore = new PreviewBlobStore(filesDir);
+        final List<ContentValues> rows = new ArrayList<ContentValues>();
+        final List<ContentValues> blobs = new ArrayList<ContentValues>();
+        try {
+            final JSONObject root = new JSONObject(new String(read(file), StandardCharsets.UTF_8));
+            if (!getCacheKey(context).equals(root.getString(KEY_CACHE_KEY))) {
+                Log.i(TAG, "System image changed, regenerating the system theme's previews");
+                file.delete();
+                return false;
+            }
+            final long now = System.currentTimeMillis();
+            final JSONArray previews = root.getJSONArray(KEY_PREVIEWS);
+            for (int i = 0; i < previews.length(); i++) {
+                final JSONObject preview = previews.getJSONObject(i);
+                ContentValues values = new ContentValues();
+                values.put(PreviewColumns.COL_KEY, preview.getString(KEY_KEY));
+                values.put(PreviewColumns.COMPONENT_ID, preview.getInt(KEY_COMPONENT_ID));
+                if (preview.has(KEY_BLOB)) {
+                    final String hash = preview.getString(KEY_BLOB);
+                    if (!PreviewBlobStore.isValidHash(hash)) {
+                        throw new JSONException("Invalid blob hash " + hash);
+                    }
+                    final File blob = new File(blobStore.getPath(hash));
+                    if (!blob.exists()) {
+                        Log.w(TAG, "Blob " + hash + " of the system theme's previews is gone");
+                        return false;
+                    }
+                    values.put(PreviewColumns.COL_VALUE, blob.getPath());
+                    ContentValues blobValues = new ContentValues();
+                    blobValues.put(PreviewBlobsTable.COL_HASH, hash);
+                    blobValues.put(PreviewBlobsTable.COL_PATH, blob.getPath());
+                    blobValues.put(PreviewBlobsTable.COL_SIZE, blob.length());
+                    blobValues.put(PreviewBlobsTable.COL_TIME, now);
+                    blobs.add(blobValues);
+                } else {
+                    values.put(PreviewColumns.COL_VALUE, preview.optString(KEY_VALUE, null));
+                }
+                rows.add(values);
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to restore the system theme's previews", e);
+            file.delete();
+            return false;
+        }
+
+        final long themeId;
+        Cursor c = db.query(ThemesTable.TABLE_NAME, new String[] { ThemesColumns._ID },
+                ThemesColumns.PKG_NAME + "=?", new String[] { ThemeConfig.SYSTEM_DEFAULT },
+                null, null, null);
+        if (c == null) return false;
+        try {
+            if (!c.moveToFirst()) return false;
+            themeId = c.getLong(0);
+        } finally {
+            c.close();
+        }
+
+        db.beginTransaction();
+        try {
+            // Blobs go first so that the triggers on the previews table count their references
+            for (ContentValues values : blobs) {
+                db.insertWithOnConflict(PreviewBlobsTable.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            for (ContentValues values : rows) {
+                values.put(PreviewColumns.THEME_ID, themeId);
+                db.insert(PreviewsTable.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(TAG, "Restored " + rows.size() + " previews of the system theme");
+        return true;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        if (file.length() > MAX_CACHE_BYTES) {
+            throw new IOException(file + " is larger than " + MAX_CACHE_BYTES + " bytes");
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
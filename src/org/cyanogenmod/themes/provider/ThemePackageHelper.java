@@ -41,6 +41,7 @@ import org.cyanogenmod.internal.util.ThemeUtils;
 import org.cyanogenmod.themes.provider.util.ProviderUtils;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -55,6 +56,9 @@ import static android.content.res.ThemeConfig.SYSTEM_DEFAULT;
 public class ThemePackageHelper {
     public final static String TAG = ThemePackageHelper.class.getName();
 
+    // Used in place of a previous install state to read the state from the provider
+    public static final int CURRENT_INSTALL_STATE = -1;
+
     // Maps the theme component to its folder name in assets.
     public static HashMap<String, String> sComponentToFolderName = new HashMap<String, String>();
     static {
@@ -77,13 +81,19 @@ public class ThemePackageHelper {
 
     public static boolean insertPackage(Context context, String pkgName, boolean isProcessing)
             throws NameNotFoundException {
-        PackageInfo pi = context.getPackageManager().getPackageInfo(pkgName, 0);
+        return insertPackage(new SyncContext(context), pkgName, isProcessing);
+    }
+
+    public static boolean insertPackage(SyncContext sync, String pkgName, boolean isProcessing)
+            throws NameNotFoundException {
+        final Context context = sync.getContext();
+        PackageInfo pi = sync.getPackageInfo(pkgName);
         if (pi == null)
             return false;
 
-        Map<String, Boolean> capabilities = getCapabilities(context, pkgName);
+        Map<String, Boolean> capabilities = getCapabilities(sync, pkgName);
         if (pi.themeInfo != null) {
-            insertPackageInternal(context, pi, capabilities, isProcessing);
+            insertPackageInternal(sync, pi, capabilities, isProcessing);
         } else if (pi.isLegacyIconPackApk){
             // We must be here because it is a legacy icon pack
             capabilities = new HashMap<String, Boolean>();
@@ -93,8 +103,9 @@ public class ThemePackageHelper {
         return true;
     }
 
-    private static void insertPackageInternal(Context context, PackageInfo pi,
+    private static void insertPackageInternal(SyncContext sync, PackageInfo pi,
             Map<String, Boolean> capabilities, boolean isProcessing) {
+        final Context context = sync.getContext();
         ThemeInfo info = pi.themeInfo;
         boolean isPresentableTheme = isPresentableTheme(capabilities);
 
@@ -106,7 +117,7 @@ public class ThemePackageHelper {
         values.put(ThemesColumns.PRESENT_AS_THEME, isPresentableTheme);
         values.put(ThemesColumns.IS_LEGACY_THEME, false);
         values.put(ThemesColumns.IS_DEFAULT_THEME,
-                ThemeUtils.getDefaultThemePackageName(context).equals(pi.packageName) ? 1 : 0);
+                sync.getDefaultThemePackageName().equals(pi.packageName) ? 1 : 0);
         values.put(ThemesColumns.LAST_UPDATE_TIME, pi.lastUpdateTime);
         values.put(ThemesColumns.INSTALL_TIME, pi.firstInstallTime);
         values.put(ThemesColumns.TARGET_API, pi.applicationInfo.targetSdkVersion);
@@ -145,25 +156,47 @@ public class ThemePackageHelper {
 
     public static void updatePackage(Context context, String pkgName, boolean isProcessing)
             throws NameNotFoundException {
+        updatePackage(new SyncContext(context), pkgName, isProcessing);
+    }
+
+    public static void updatePackage(SyncContext sync, String pkgName, boolean isProcessing)
+            throws NameNotFoundException {
+        updatePackage(sync, pkgName, isProcessing, CURRENT_INSTALL_STATE);
+    }
+
+    /**
+     * Updates the theme in the provider, treating it as though its install state before the
+     * update was previousInstallState.  This allows a caller that skipped an intermediate state,
+     * i.e. by coalescing a replace with the following resources cached event, to still get the
+     * broadcasts and reapply for the transition that actually happened.
+     * @param previousInstallState The prior install state or {@link #CURRENT_INSTALL_STATE} to
+     *                             use the state stored in the provider
+     */
+    public static void updatePackage(SyncContext sync, String pkgName, boolean isProcessing,
+            int previousInstallState) throws NameNotFoundException {
+        final Context context = sync.getContext();
         if (SYSTEM_DEFAULT.equals(pkgName)) {
-            updateSystemPackageInternal(context);
+            updateSystemPackageInternal(sync);
         } else {
-            PackageInfo pi = context.getPackageManager().getPackageInfo(pkgName, 0);
-            Map<String, Boolean> capabilities = getCapabilities(context, pkgName);
+            PackageInfo pi = sync.getPackageInfo(pkgName);
+            Map<String, Boolean> capabilities = getCapabilities(sync, pkgName);
             if (pi.themeInfo != null) {
-                updatePackageInternal(context, pi, capabilities, isProcessing);
+                updatePackageInternal(sync, pi, capabilities, isProcessing,
+                        previousInstallState);
             } else if (pi.isLegacyIconPackApk) {
                 updateLegacyIconPackInternal(context, pi, capabilities, isProcessing);
             }
         }
     }
 
-    private static void updatePackageInternal(Context context, PackageInfo pi,
-            Map<String, Boolean> capabilities, boolean isProcessing) {
+    private static void updatePackageInternal(SyncContext sync, PackageInfo pi,
+            Map<String, Boolean> capabilities, boolean isProcessing, int previousInstallState) {
+        final Context context = sync.getContext();
         ThemeInfo info = pi.themeInfo;
         boolean isPresentableTheme = ThemePackageHelper.isPresentableTheme(capabilities);
-        final int oldInstallState =
-                ProviderUtils.getInstallStateForTheme(context, pi.packageName);
+        final int oldInstallState = previousInstallState != CURRENT_INSTALL_STATE
+                ? previousInstallState
+                : ProviderUtils.getInstallStateForTheme(context, pi.packageName);
         final int newState = isProcessing ? InstallState.UPDATING : InstallState.INSTALLED;
 
         ContentValues values = new ContentValues();
@@ -174,7 +207,7 @@ public class ThemePackageHelper {
         values.put(ThemesColumns.PRESENT_AS_THEME, isPresentableTheme);
         values.put(ThemesColumns.IS_LEGACY_THEME, false);
         values.put(ThemesColumns.IS_DEFAULT_THEME,
-                ThemeUtils.getDefaultThemePackageName(context).equals(pi.packageName) ? 1 : 0);
+                sync.getDefaultThemePackageName().equals(pi.packageName) ? 1 : 0);
         values.put(ThemesColumns.LAST_UPDATE_TIME, pi.lastUpdateTime);
         values.put(ThemesColumns.INSTALL_TIME, pi.firstInstallTime);
         values.put(ThemesColumns.TARGET_API, pi.applicationInfo.targetSdkVersion);
@@ -195,15 +228,16 @@ public class ThemePackageHelper {
             } else if (oldInstallState == ThemesColumns.InstallState.UPDATING) {
                 ProviderUtils.sendThemeUpdatedBroadcast(context, pi.packageName);
                 // We should reapply any components that are currently applied for this theme.
-                reapplyInstalledComponentsForTheme(context, pi.packageName);
+                ReapplyScheduler.getInstance(context).scheduleReapply(pi.packageName);
             }
         }
     }
 
-    private static void updateSystemPackageInternal(Context context) {
+    private static void updateSystemPackageInternal(SyncContext sync) {
+        final Context context = sync.getContext();
         ContentValues values = new ContentValues();
         values.put(ThemesColumns.IS_DEFAULT_THEME,
-                SYSTEM_DEFAULT == ThemeUtils.getDefaultThemePackageName(context) ? 1 : 0);
+                SYSTEM_DEFAULT == sync.getDefaultThemePackageName() ? 1 : 0);
         String where = ThemesColumns.PKG_NAME + "=?";
         String[] args = { SYSTEM_DEFAULT };
         context.getContentResolver().update(ThemesColumns.CONTENT_URI, values, where, args);
@@ -235,12 +269,21 @@ public class ThemePackageHelper {
         if (newState == ThemesColumns.InstallState.INSTALLED) {
             if (oldInstallState == ThemesColumns.InstallState.UPDATING) {
                 // We should reapply any components that are currently applied for this theme.
-                reapplyInstalledComponentsForTheme(context, pi.packageName);
+                ReapplyScheduler.getInstance(context).scheduleReapply(pi.packageName);
             }
         }
     }
 
+    /**
+     * Removes the theme from the provider and reverts any of its applied components back to the
+     * default theme.  Removals are batched by {@link ThemeRemovalBatcher} so that uninstalling
+     * several themes at once results in at most one theme change.
+     */
     public static void removePackage(Context context, String pkgToRemove) {
+        ThemeRemovalBatcher.getInstance(context).removePackage(pkgToRemove);
+    }
+
+    static void removePackagesInternal(Context context, Collection<String> pkgsToRemove) {
         // Check currently applied components (fonts, wallpapers etc) and verify the theme is still
         // installed. If it is not installed, we need to set the component back to the default theme
         ThemeChangeRequest.Builder builder = new ThemeChangeRequest.Builder();
@@ -248,18 +291,22 @@ public class ThemePackageHelper {
 
         Cursor mixnmatch = context.getContentResolver().query(MixnMatchColumns.CONTENT_URI, null,
                 null, null, null);
-        while (mixnmatch.moveToNext()) {
-            String mixnmatchKey = mixnmatch.getString(mixnmatch
-                    .getColumnIndex(MixnMatchColumns.COL_KEY));
-            String component = ThemesContract.MixnMatchColumns
-                    .mixNMatchKeyToComponent(mixnmatchKey);
-            String pkg = mixnmatch.getString(mixnmatch.getColumnIndex(MixnMatchColumns.COL_VALUE));
-            if (pkgToRemove.equals(pkg)) {
-                builder.setComponent(component, defaultComponents.get(component));
+        if (mixnmatch != null) {
+            while (mixnmatch.moveToNext()) {
+                String mixnmatchKey = mixnmatch.getString(mixnmatch
+                        .getColumnIndex(MixnMatchColumns.COL_KEY));
+                String component = ThemesContract.MixnMatchColumns
+                        .mixNMatchKeyToComponent(mixnmatchKey);
+                String pkg = mixnmatch.getString(
+                        mixnmatch.getColumnIndex(MixnMatchColumns.COL_VALUE));
+                if (pkgsToRemove.contains(pkg)) {
+                    builder.setComponent(component, defaultComponents.get(component));
+                }
             }
+            mixnmatch.close();
         }
 
-        // Check for any per-app themes components using this theme
+        // Check for any per-app themes components using these themes
         final Configuration config = context.getResources().getConfiguration();
         final ThemeConfig themeConfig = config != null ? config.themeConfig : null;
         if (themeConfig != null) {
@@ -268,23 +315,28 @@ public class ThemePackageHelper {
                     = defaultComponents.get(ThemesColumns.MODIFIES_OVERLAYS);
             for (String appPkgName : themes.keySet()) {
                 if (ThemeUtils.isPerAppThemeComponent(appPkgName) &&
-                        pkgToRemove.equals(themes.get(appPkgName).getOverlayPkgName())) {
+                        pkgsToRemove.contains(themes.get(appPkgName).getOverlayPkgName())) {
                     builder.setAppOverlay(appPkgName, defaultOverlayPkgName);
                 }
             }
         }
-        mixnmatch.close();
 
+        // Only bother the theme manager if one of the removed themes was actually applied
         builder.setRequestType(RequestType.THEME_REMOVED);
-        ThemeManager manager = ThemeManager.getInstance(context);
-        manager.requestThemeChange(builder.build(), false);
+        ThemeChangeRequest request = builder.build();
+        if (request.getNumChangesRequested() > 0) {
+            ThemeManager manager = ThemeManager.getInstance(context);
+            manager.requestThemeChange(request, false);
+        }
 
-        // Delete the theme from the db
+        // Delete the themes from the db
         String selection = ThemesColumns.PKG_NAME + "= ?";
-        String[] selectionArgs = { pkgToRemove };
         final ContentResolver resolver = context.getContentResolver();
-        if (resolver.delete(ThemesColumns.CONTENT_URI, selection, selectionArgs) > 0) {
-            ProviderUtils.sendThemeRemovedBroadcast(context, pkgToRemove);
+        for (String pkgToRemove : pkgsToRemove) {
+            String[] selectionArgs = { pkgToRemove };
+            if (resolver.delete(ThemesColumns.CONTENT_URI, selection, selectionArgs) > 0) {
+                ProviderUtils.sendThemeRemovedBroadcast(context, pkgToRemove);
+            }
         }
     }
 
@@ -294,9 +346,14 @@ public class ThemePackageHelper {
      * MODIFIES_RINGTONES -> false)
      */
     public static Map<String, Boolean> getCapabilities(Context context, String pkgName) {
+        return getCapabilities(new SyncContext(context), pkgName);
+    }
+
+    public static Map<String, Boolean> getCapabilities(SyncContext sync, String pkgName) {
+        final Context context = sync.getContext();
         PackageInfo pi = null;
         try {
-            pi = context.getPackageManager().getPackageInfo(pkgName, 0);
+            pi = sync.getPackageInfo(pkgName);
         } catch (Exception e) {
             Log.e(TAG, "Error getting pi during insert", e);
             return Collections.emptyMap();
@@ -358,34 +415,45 @@ public class ThemePackageHelper {
         return componentMap.containsKey(component) && componentMap.get(component);
     }
 
-    private static void reapplyInstalledComponentsForTheme(Context context, String pkgName) {
+    /**
+     * Reapplies any components, from any of the given themes, that are currently applied.  This
+     * is done with a single THEME_UPDATED request covering all of the themes.
+     */
+    static void reapplyInstalledComponentsForThemes(Context context, Collection<String> pkgNames) {
         ThemeChangeRequest.Builder builder = new ThemeChangeRequest.Builder();
         Configuration config = context.getResources().getConfiguration();
         if (config != null && config.themeConfig != null) {
             // Other packages such as wallpaper can be changed outside of themes
-            // and are not tracked well by the provider. We only care to apply resources that may crash
-            // the system if they are not reapplied.
+            // and are not tracked well by the provider. We only care to apply resources that may
+            // crash the system if they are not reapplied.
             ThemeConfig themeConfig = config.themeConfig;
-            if (pkgName.equals(themeConfig.getFontPkgName())) {
+            String pkgName = themeConfig.getFontPkgName();
+            if (pkgNames.contains(pkgName)) {
                 builder.setFont(pkgName);
             }
-            if (pkgName.equals(themeConfig.getIconPackPkgName())) {
+            pkgName = themeConfig.getIconPackPkgName();
+            if (pkgNames.contains(pkgName)) {
                 builder.setIcons(pkgName);
             }
-            if (pkgName.equals(themeConfig.getOverlayPkgName())) {
+            pkgName = themeConfig.getOverlayPkgName();
+            if (pkgNames.contains(pkgName)) {
                 builder.setOverlay(pkgName);
             }
-            if (pkgName.equals(themeConfig.getOverlayPkgNameForApp(SYSTEMUI_STATUS_BAR_PKG))) {
+            pkgName = themeConfig.getOverlayPkgNameForApp(SYSTEMUI_STATUS_BAR_PKG);
+            if (pkgNames.contains(pkgName)) {
                 builder.setStatusBar(pkgName);
             }
-            if (pkgName.equals(themeConfig.getOverlayPkgNameForApp(SYSTEMUI_NAVBAR_PKG))) {
+            pkgName = themeConfig.getOverlayPkgNameForApp(SYSTEMUI_NAVBAR_PKG);
+            if (pkgNames.contains(pkgName)) {
                 builder.setNavBar(pkgName);
             }
 
-            // Check if there are any per-app overlays using this theme
+            // Check if there are any per-app overlays using these themes
             final Map<String, ThemeConfig.AppTheme> themes = themeConfig.getAppThemes();
             for (String appPkgName : themes.keySet()) {
-                if (ThemeUtils.isPerAppThemeComponent(appPkgName)) {
+                pkgName = themes.get(appPkgName).getOverlayPkgName();
+                if (ThemeUtils.isPerAppThemeComponent(appPkgName)
+                        && pkgNames.contains(pkgName)) {
                     builder.setAppOverlay(appPkgName, pkgName);
                 }
             }
@@ -401,8 +469,8 @@ public class ThemePackageHelper {
             if (cursor != null) {
                 if (cursor.moveToFirst()) {
                     String appliedPkgName = cursor.getString(0);
-                    if (pkgName.equals(appliedPkgName)) {
-                        builder.setLiveLockScreen(pkgName);
+                    if (pkgNames.contains(appliedPkgName)) {
+                        builder.setLiveLockScreen(appliedPkgName);
                     }
                 }
                 cursor.close();
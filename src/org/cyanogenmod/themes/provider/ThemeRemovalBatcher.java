@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Collects theme removals over a short window so that uninstalling several themes together
+ * reverts all of their applied components with a single theme change rather than one per
+ * package.
+ */
+public class ThemeRemovalBatcher {
+    private static final String TAG = ThemeRemovalBatcher.class.getSimpleName();
+
+    // How long to wait for further removals before processing the batch
+    private static final long BATCH_WINDOW_MS = 1000;
+    // Upper bound on how long the first removal in a batch can be held back
+    private static final long MAX_BATCH_DELAY_MS = 5000;
+
+    private static ThemeRemovalBatcher sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Set<String> mPendingRemovals = new LinkedHashSet<String>();
+    private long mFirstPendingTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public static synchronized ThemeRemovalBatcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThemeRemovalBatcher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ThemeRemovalBatcher(Context context) {
+        mContext = context;
+        mHandler = BackgroundThread.getHandler();
+    }
+
+    public void removePackage(String pkgName) {
+        synchronized (mPendingRemovals) {
+            final long now = SystemClock.uptimeMillis();
+            if (mPendingRemovals.isEmpty()) {
+                mFirstPendingTime = now;
+            }
+            mPendingRemovals.add(pkgName);
+            mHandler.removeCallbacks(mFlushRunnable);
+            final long deadline = Math.min(now + BATCH_WINDOW_MS,
+                    mFirstPendingTime + MAX_BATCH_DELAY_MS);
+            mHandler.postAtTime(mFlushRunnable, deadline);
+        }
+    }
+
+    /**
+     * Drops a removal that is still waiting in the batch, i.e. because the package was
+     * installed again.
+     * @return True if a removal of the package was pending
+     */
+    public boolean cancelRemoval(String pkgName) {
+        synchronized (mPendingRemovals) {
+            return mPendingRemovals.remove(pkgName);
+        }
+    }
+
+    private void flush() {
+        Set<String> removals;
+        synchronized (mPendingRemovals) {
+            if (mPendingRemovals.isEmpty()) return;
+            removals = new LinkedHashSet<String>(mPendingRemovals);
+            mPendingRemovals.clear();
+        }
+
+        // A package may have been reinstalled while its removal was waiting in the batch
+        final PackageManager pm = mContext.getPackageManager();
+        Iterator<String> iterator = removals.iterator();
+        while (iterator.hasNext()) {
+            try {
+                pm.getPackageInfo(iterator.next(), 0);
+                iterator.remove();
+            } catch (NameNotFoundException e) {
+                // Still gone, so it can be removed
+            }
+        }
+        if (removals.isEmpty()) return;
+
+        Log.d(TAG, "Removing " + removals.size() + " themes");
+        ThemePackageHelper.removePackagesInternal(mContext, removals);
+    }
+}
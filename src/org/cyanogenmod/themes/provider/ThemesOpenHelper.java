@@ -22,6 +22,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.ThemeConfig;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -34,11 +35,17 @@ import cyanogenmod.providers.ThemesContract.MixnMatchColumns;
 import cyanogenmod.providers.ThemesContract.PreviewColumns;
 
 import org.cyanogenmod.internal.util.ThemeUtils;
+import org.cyanogenmod.themes.provider.util.PreviewBlobStore;
+import org.cyanogenmod.themes.provider.util.PreviewUtils;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
 
 public class ThemesOpenHelper extends SQLiteOpenHelper {
     private static final String TAG = ThemesOpenHelper.class.getName();
 
-    private static final int DATABASE_VERSION = 20;
+    private static final int DATABASE_VERSION = 28;
     private static final String DATABASE_NAME = "themes.db";
     private static final String SYSTEM_THEME_PKG_NAME = ThemeConfig.SYSTEM_DEFAULT;
     private static final String OLD_SYSTEM_THEME_PKG_NAME = "holo";
@@ -53,17 +60,29 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(ThemesTable.THEMES_TABLE_CREATE);
+        ThemesTable.createIndices(db);
         db.execSQL(MixnMatchTable.MIXNMATCH_TABLE_CREATE);
         db.execSQL(PreviewsTable.PREVIEWS_TABLE_CREATE);
+        db.execSQL(PackageJournalTable.PACKAGE_JOURNAL_TABLE_CREATE);
+        db.execSQL(PreviewFingerprintsTable.PREVIEW_FINGERPRINTS_TABLE_CREATE);
+        PreviewBlobsTable.create(db);
+        db.execSQL(PreviewBacklogTable.PREVIEW_BACKLOG_TABLE_CREATE);
+        db.execSQL(PreviewWorkTable.PREVIEW_WORK_TABLE_CREATE);
+        db.execSQL(PreviewFailuresTable.PREVIEW_FAILURES_TABLE_CREATE);
 
         ThemesTable.insertSystemDefaults(db, mContext);
         MixnMatchTable.insertDefaults(db);
-        PreviewsTable.insertDefaults(mContext);
+        if (!SystemPreviewCache.restore(mContext, db)) {
+            PreviewsTable.insertDefaults(mContext);
+        }
+        PreviewBlobsTable.deleteUnregisteredBlobs(db, mContext);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.i(TAG, "Upgrading DB from version " + oldVersion + " to " + newVersion);
+        // Needed by upgrades older than the table itself that regenerate previews
+        db.execSQL(PreviewBacklogTable.PREVIEW_BACKLOG_TABLE_CREATE);
         try {
             if (oldVersion == 1) {
                 upgradeToVersion2(db);
@@ -138,6 +157,38 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                 upgradeToVersion20(db);
                 oldVersion = 20;
             }
+            if (oldVersion == 20) {
+                upgradeToVersion21(db);
+                oldVersion = 21;
+            }
+            if (oldVersion == 21) {
+                upgradeToVersion22(db);
+                oldVersion = 22;
+            }
+            if (oldVersion == 22) {
+                upgradeToVersion23(db);
+                oldVersion = 23;
+            }
+            if (oldVersion == 23) {
+                upgradeToVersion24(db);
+                oldVersion = 24;
+            }
+            if (oldVersion == 24) {
+                upgradeToVersion25(db);
+                oldVersion = 25;
+            }
+            if (oldVersion == 25) {
+                upgradeToVersion26(db);
+                oldVersion = 26;
+            }
+            if (oldVersion == 26) {
+                upgradeToVersion27(db);
+                oldVersion = 27;
+            }
+            if (oldVersion == 27) {
+                upgradeToVersion28(db);
+                oldVersion = 28;
+            }
             if (oldVersion != DATABASE_VERSION) {
                 Log.e(TAG, "Recreating db because unknown database version: " + oldVersion);
                 dropTables(db);
@@ -213,10 +264,7 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                 null, null, null);
         if (c != null) {
             while(c.moveToNext()) {
-                Intent intent = new Intent(mContext, PreviewGenerationService.class);
-                intent.setAction(PreviewGenerationService.ACTION_INSERT);
-                intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, c.getString(0));
-                mContext.startService(intent);
+                generatePreviewsLater(db, c.getString(0));
             }
             c.close();
         }
@@ -259,10 +307,7 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                             ThemesTable.TABLE_NAME, ThemesColumns.MODIFIES_STATUS_BAR,
                             ThemesColumns.MODIFIES_NAVIGATION_BAR, ThemesColumns.PKG_NAME,
                             pkgName));
-                    Intent intent = new Intent(mContext, PreviewGenerationService.class);
-                    intent.setAction(PreviewGenerationService.ACTION_INSERT);
-                    intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, pkgName);
-                    mContext.startService(intent);
+                    generatePreviewsLater(db, pkgName);
                 }
             }
             c.close();
@@ -299,10 +344,7 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                     }
                 }
                 if (hasSystemUi) {
-                    Intent intent = new Intent(mContext, PreviewGenerationService.class);
-                    intent.setAction(PreviewGenerationService.ACTION_INSERT);
-                    intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, pkgName);
-                    mContext.startService(intent);
+                    generatePreviewsLater(db, pkgName);
                 }
             }
             c.close();
@@ -438,10 +480,7 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                 null, null, null);
         if (c != null) {
             while(c.moveToNext()) {
-                Intent intent = new Intent(mContext, PreviewGenerationService.class);
-                intent.setAction(PreviewGenerationService.ACTION_INSERT);
-                intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, c.getString(0));
-                mContext.startService(intent);
+                generatePreviewsLater(db, c.getString(0));
             }
             c.close();
         }
@@ -480,10 +519,7 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                 null, null, null);
         if (c != null) {
             while(c.moveToNext()) {
-                Intent intent = new Intent(mContext, PreviewGenerationService.class);
-                intent.setAction(PreviewGenerationService.ACTION_INSERT);
-                intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, c.getString(0));
-                mContext.startService(intent);
+                generatePreviewsLater(db, c.getString(0));
             }
             c.close();
         }
@@ -497,15 +533,118 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                 SYSTEM_THEME_PKG_NAME));
     }
 
+    private void upgradeToVersion21(SQLiteDatabase db) {
+        // add capabilities bitmask column to themes db
+        String sql = String.format("ALTER TABLE %s ADD COLUMN %s INTEGER DEFAULT 0",
+                ThemesTable.TABLE_NAME, ThemesTable.COL_CAPABILITIES);
+        db.execSQL(sql);
+
+        // derive the mask for existing themes from their mods_* columns
+        ThemesTable.updateCapabilitiesMask(db, null, null);
+        ThemesTable.createIndices(db);
+    }
+
+    private void upgradeToVersion22(SQLiteDatabase db) {
+        db.execSQL(PackageJournalTable.PACKAGE_JOURNAL_TABLE_CREATE);
+    }
+
+    private void upgradeToVersion23(SQLiteDatabase db) {
+        // No fingerprints exist yet so the first update of each theme regenerates everything
+        db.execSQL(PreviewFingerprintsTable.PREVIEW_FINGERPRINTS_TABLE_CREATE);
+    }
+
+    private void upgradeToVersion24(SQLiteDatabase db) {
+        // Existing previews stay in their per theme directories until they are regenerated
+        PreviewBlobsTable.create(db);
+    }
+
+    private void upgradeToVersion25(SQLiteDatabase db) {
+        db.execSQL(PreviewBacklogTable.PREVIEW_BACKLOG_TABLE_CREATE);
+    }
+
+    private void upgradeToVersion26(SQLiteDatabase db) {
+        db.execSQL(PreviewWorkTable.PREVIEW_WORK_TABLE_CREATE);
+    }
+
+    private void upgradeToVersion27(SQLiteDatabase db) {
+        db.execSQL(PreviewFailuresTable.PREVIEW_FAILURES_TABLE_CREATE);
+    }
+
+    private void upgradeToVersion28(SQLiteDatabase db) {
+        // Fingerprints are now kept per generator rather than per MODIFIES_* column, the old
+        // ones no longer match anything and only cost each theme one regeneration
+        db.delete(PreviewFingerprintsTable.TABLE_NAME, null, null);
+    }
+
+    /**
+     * Regenerating every theme's previews as part of an upgrade is not urgent, so only the
+     * applied themes are regenerated right away.  The rest are added to the preview backlog and
+     * generated by {@link PreviewBackfillService} while the device is idle and charging.
+     */
+    private void generatePreviewsLater(SQLiteDatabase db, String pkgName) {
+        if (MixnMatchTable.isApplied(db, pkgName)) {
+            Intent intent = new Intent(mContext, PreviewGenerationService.class);
+            intent.setAction(PreviewGenerationService.ACTION_INSERT);
+            intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, pkgName);
+            mContext.startService(intent);
+        } else {
+            PreviewBacklogTable.add(db, pkgName);
+            PreviewBackfillService.schedule(mContext);
+        }
+    }
+
     private void dropTables(SQLiteDatabase db) {
         db.execSQL("DROP TABLE IF EXISTS " + ThemesTable.TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + MixnMatchTable.TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + PreviewsTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PackageJournalTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PreviewFingerprintsTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PreviewBlobsTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PreviewBacklogTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PreviewWorkTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PreviewFailuresTable.TABLE_NAME);
     }
 
     public static class ThemesTable {
         protected static final String TABLE_NAME = "themes";
 
+        /**
+         * Bitmask of the MODIFIES_* columns a theme implements, with bit i set when
+         * CAPABILITY_COLUMNS[i] is set.  This is derived data and maintained by the provider
+         * whenever any of the MODIFIES_* columns are inserted or updated.
+         */
+        public static final String COL_CAPABILITIES = "capabilities";
+
+        /**
+         * Order of the MODIFIES_* columns within {@link #COL_CAPABILITIES}.  New capabilities
+         * must only ever be appended to the end of this list.
+         */
+        public static final String[] CAPABILITY_COLUMNS = {
+                ThemesColumns.MODIFIES_LAUNCHER,
+                ThemesColumns.MODIFIES_LOCKSCREEN,
+                ThemesColumns.MODIFIES_ICONS,
+                ThemesColumns.MODIFIES_BOOT_ANIM,
+                ThemesColumns.MODIFIES_FONTS,
+                ThemesColumns.MODIFIES_RINGTONES,
+                ThemesColumns.MODIFIES_NOTIFICATIONS,
+                ThemesColumns.MODIFIES_ALARMS,
+                ThemesColumns.MODIFIES_OVERLAYS,
+                ThemesColumns.MODIFIES_STATUS_BAR,
+                ThemesColumns.MODIFIES_NAVIGATION_BAR,
+                ThemesColumns.MODIFIES_LIVE_LOCK_SCREEN
+        };
+
+        private static final String CAPABILITIES_MASK_EXPRESSION;
+        static {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < CAPABILITY_COLUMNS.length; i++) {
+                if (i > 0) sb.append(" | ");
+                sb.append("((IFNULL(").append(CAPABILITY_COLUMNS[i]).append(", 0) != 0) << ")
+                        .append(i).append(")");
+            }
+            CAPABILITIES_MASK_EXPRESSION = sb.append(")").toString();
+        }
+
         private static final String THEMES_TABLE_CREATE =
                 "CREATE TABLE " + TABLE_NAME + " (" +
                         ThemesColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -543,9 +682,75 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                         ThemesColumns.INSTALL_TIME + " INTEGER DEFAULT 0, " +
                         ThemesColumns.TARGET_API + " INTEGER DEFAULT 0," +
                         ThemesColumns.INSTALL_STATE + " INTEGER DEFAULT " +
-                        ThemesColumns.InstallState.UNKNOWN +
+                        ThemesColumns.InstallState.UNKNOWN + ", " +
+                        COL_CAPABILITIES + " INTEGER DEFAULT 0" +
                         ")";
 
+        public static void createIndices(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_capabilities_idx ON " +
+                    TABLE_NAME + "(" + COL_CAPABILITIES + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_title_idx ON " +
+                    TABLE_NAME + "(" + ThemesColumns.TITLE + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_install_time_idx ON " +
+                    TABLE_NAME + "(" + ThemesColumns.INSTALL_TIME + ")");
+        }
+
+        /**
+         * @return The bit used for the given MODIFIES_* column or 0 if it is not a capability
+         */
+        public static int getCapabilityBit(String component) {
+            for (int i = 0; i < CAPABILITY_COLUMNS.length; i++) {
+                if (CAPABILITY_COLUMNS[i].equals(component)) return 1 << i;
+            }
+            return 0;
+        }
+
+        /**
+         * Computes the capabilities mask for a complete set of values being inserted.  Missing
+         * MODIFIES_* columns are treated as 0, matching the column defaults.
+         */
+        public static int getCapabilitiesMask(ContentValues values) {
+            int mask = 0;
+            for (int i = 0; i < CAPABILITY_COLUMNS.length; i++) {
+                Object value = values.get(CAPABILITY_COLUMNS[i]);
+                boolean set;
+                if (value instanceof Boolean) {
+                    set = (Boolean) value;
+                } else if (value instanceof Number) {
+                    set = ((Number) value).intValue() != 0;
+                } else {
+                    set = value != null && !"0".equals(value.toString());
+                }
+                if (set) mask |= 1 << i;
+            }
+            return mask;
+        }
+
+        /**
+         * @return True if values touches any of the columns {@link #COL_CAPABILITIES} is
+         * derived from
+         */
+        public static boolean hasCapabilityColumns(ContentValues values) {
+            for (String column : CAPABILITY_COLUMNS) {
+                if (values.containsKey(column)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Recomputes {@link #COL_CAPABILITIES} from the MODIFIES_* columns of the matching rows.
+         */
+        public static void updateCapabilitiesMask(SQLiteDatabase db, String selection,
+                String[] selectionArgs) {
+            StringBuilder sql = new StringBuilder("UPDATE ").append(TABLE_NAME)
+                    .append(" SET ").append(COL_CAPABILITIES).append("=")
+                    .append(CAPABILITIES_MASK_EXPRESSION);
+            if (selection != null && !selection.isEmpty()) {
+                sql.append(" WHERE ").append(selection);
+            }
+            db.execSQL(sql.toString(), selectionArgs != null ? selectionArgs : new Object[0]);
+        }
+
         public static void insertSystemDefaults(SQLiteDatabase db, Context context) {
             int isDefault = isSystemDefault(context) ? 1 : 0;
             ContentValues values = new ContentValues();
@@ -570,6 +775,7 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
             values.put(ThemesColumns.MODIFIES_OVERLAYS, 1);
             values.put(ThemesColumns.TARGET_API, Build.VERSION.SDK_INT);
             values.put(ThemesColumns.INSTALL_STATE, ThemesColumns.InstallState.INSTALLED);
+            values.put(COL_CAPABILITIES, getCapabilitiesMask(values));
             db.insert(TABLE_NAME, null, values);
         }
     }
@@ -602,6 +808,14 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
                 db.insert(TABLE_NAME, null, values);
             }
         }
+
+        /**
+         * @return True if any component of the theme is currently applied
+         */
+        public static boolean isApplied(SQLiteDatabase db, String pkgName) {
+            return DatabaseUtils.queryNumEntries(db, TABLE_NAME,
+                    MixnMatchColumns.COL_VALUE + "=?", new String[] { pkgName }) > 0;
+        }
     }
 
     public static class PreviewsTable {
@@ -648,6 +862,195 @@ public class ThemesOpenHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Durable record of package events received while in bulk install mode.  Rows are applied
+     * and removed together by the provider, see {@link PackageEventQueue}.
+     */
+    public static class PackageJournalTable {
+        public static final String TABLE_NAME = "package_journal";
+        public static final String COL_ID = "_id";
+        public static final String COL_PKG_NAME = "pkg_name";
+        public static final String COL_EVENT = "event";
+        public static final String COL_TIME = "time";
+
+        private static final String PACKAGE_JOURNAL_TABLE_CREATE =
+                "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                        COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        COL_PKG_NAME + " TEXT NOT NULL, " +
+                        COL_EVENT + " INTEGER NOT NULL, " +
+                        COL_TIME + " INTEGER DEFAULT 0" +
+                        ")";
+    }
+
+    /**
+     * Fingerprints of the assets each generator's previews of a theme were last generated from,
+     * keyed by the generator's name in COL_COMPONENT, see
+     * {@link org.cyanogenmod.themes.provider.util.ComponentFingerprints}.
+     */
+    public static class PreviewFingerprintsTable {
+        public static final String TABLE_NAME = "preview_fingerprints";
+        public static final String COL_PKG_NAME = "pkg_name";
+        public static final String COL_COMPONENT = "component";
+        public static final String COL_FINGERPRINT = "fingerprint";
+
+        private static final String PREVIEW_FINGERPRINTS_TABLE_CREATE =
+                "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                        COL_PKG_NAME + " TEXT NOT NULL, " +
+                        COL_COMPONENT + " TEXT NOT NULL, " +
+                        COL_FINGERPRINT + " TEXT, " +
+                        "PRIMARY KEY (" + COL_PKG_NAME + ", " + COL_COMPONENT + ")" +
+                        ")";
+    }
+
+    /**
+     * Previews stored in the {@link org.cyanogenmod.themes.provider.util.PreviewBlobStore}.
+     * COL_REF_COUNT is the number of preview rows whose value is the blob's path and is kept up
+     * to date by triggers on the previews table, so any change to the previews, including the
+     * removal of a theme, is reflected without the callers having to track blobs.  Blobs that
+     * are no longer referenced are removed by the provider.
+     */
+    public static class PreviewBlobsTable {
+        public static final String TABLE_NAME = "preview_blobs";
+        public static final String COL_HASH = "hash";
+        public static final String COL_PATH = "path";
+        public static final String COL_SIZE = "size";
+        public static final String COL_REF_COUNT = "ref_count";
+        // Last time the blob was stored or reused, protects it until rows referencing it exist
+        public static final String COL_TIME = "time";
+
+        private static final String PREVIEW_BLOBS_TABLE_CREATE =
+                "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                        COL_HASH + " TEXT PRIMARY KEY, " +
+                        COL_PATH + " TEXT UNIQUE NOT NULL, " +
+                        COL_SIZE + " INTEGER DEFAULT 0, " +
+                        COL_REF_COUNT + " INTEGER DEFAULT 0, " +
+                        COL_TIME + " INTEGER DEFAULT 0" +
+                        ")";
+
+        private static void create(SQLiteDatabase db) {
+            db.execSQL(PREVIEW_BLOBS_TABLE_CREATE);
+            final String increment = "UPDATE " + TABLE_NAME + " SET " + COL_REF_COUNT + "=" +
+                    COL_REF_COUNT + "+1 WHERE " + COL_PATH + "=NEW." + PreviewColumns.COL_VALUE +
+                    ";";
+            final String decrement = "UPDATE " + TABLE_NAME + " SET " + COL_REF_COUNT + "=" +
+                    COL_REF_COUNT + "-1 WHERE " + COL_PATH + "=OLD." + PreviewColumns.COL_VALUE +
+                    ";";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_insert AFTER INSERT ON " +
+                    PreviewsTable.TABLE_NAME + " BEGIN " + increment + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_delete AFTER DELETE ON " +
+                    PreviewsTable.TABLE_NAME + " BEGIN " + decrement + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_update AFTER UPDATE OF " +
+                    PreviewColumns.COL_VALUE + " ON " + PreviewsTable.TABLE_NAME + " BEGIN " +
+                    decrement + " " + increment + " END");
+        }
+
+        /**
+         * Deletes the files in the blob store that have no row, which are left behind when the
+         * database is recreated.  Blobs registered by then, such as those of the restored
+         * system theme previews, are kept.
+         */
+        private static void deleteUnregisteredBlobs(SQLiteDatabase db, Context context) {
+            final File[] files = new File(PreviewUtils.getPreviewsDir(
+                    context.getFilesDir().getAbsolutePath()), PreviewBlobStore.BLOBS_DIR)
+                    .listFiles();
+            if (files == null) return;
+            final Set<String> registered = new HashSet<String>();
+            Cursor c = db.query(TABLE_NAME, new String[] { COL_PATH }, null, null, null, null,
+                    null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    registered.add(c.getString(0));
+                }
+                c.close();
+            }
+            int deleted = 0;
+            for (File file : files) {
+                if (!registered.contains(file.getPath()) && file.delete()) {
+                    deleted++;
+                }
+            }
+            if (deleted > 0) {
+                Log.i(TAG, "Deleted " + deleted + " preview blobs left by the previous database");
+            }
+        }
+    }
+
+    /**
+     * Themes whose previews are waiting to be generated in the background, either because
+     * generation is deferred until they are first needed or because they are part of bulk work
+     * such as an upgrade, see {@link ThemesProvider}.  Rows are removed once a theme's previews
+     * have been generated.
+     */
+    public static class PreviewBacklogTable {
+        public static final String TABLE_NAME = "preview_backlog";
+        public static final String COL_PKG_NAME = "pkg_name";
+        // When the theme was added or last handed to the backfill
+        public static final String COL_TIME = "time";
+
+        private static final String PREVIEW_BACKLOG_TABLE_CREATE =
+                "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                        COL_PKG_NAME + " TEXT PRIMARY KEY, " +
+                        COL_TIME + " INTEGER DEFAULT 0" +
+                        ")";
+
+        public static void add(SQLiteDatabase db, String pkgName) {
+            ContentValues values = new ContentValues();
+            values.put(COL_PKG_NAME, pkgName);
+            values.put(COL_TIME, System.currentTimeMillis());
+            db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
+    /**
+     * Preview generation that has started but not been committed yet, one row per generator of
+     * a theme.  A row is added for every generator a run is going to commit and removed in the
+     * same transaction that commits it, so rows left behind after a crash name exactly the
+     * components that still have to be generated.  Attempts counts how many times the work has
+     * been resumed so that a theme that keeps crashing the process is eventually given up on.
+     */
+    public static class PreviewWorkTable {
+        public static final String TABLE_NAME = "preview_work";
+        public static final String COL_PKG_NAME = "pkg_name";
+        public static final String COL_GENERATOR = "generator";
+        public static final String COL_ATTEMPTS = "attempts";
+        public static final String COL_TIME = "time";
+
+        private static final String PREVIEW_WORK_TABLE_CREATE =
+                "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                        COL_PKG_NAME + " TEXT NOT NULL, " +
+                        COL_GENERATOR + " TEXT NOT NULL, " +
+                        COL_ATTEMPTS + " INTEGER DEFAULT 0, " +
+                        COL_TIME + " INTEGER DEFAULT 0, " +
+                        "PRIMARY KEY (" + COL_PKG_NAME + ", " + COL_GENERATOR + ")" +
+                        ")";
+    }
+
+    /**
+     * Generators that failed for a theme, so that the same failure is not repeated every time
+     * the theme is processed.  A generator is not run again until COL_RETRY_AFTER, which backs
+     * off exponentially with the number of consecutive failures, unless the theme's APK no longer
+     * has COL_APK_FINGERPRINT.  Rows are removed once the generator succeeds.
+     */
+    public static class PreviewFailuresTable {
+        public static final String TABLE_NAME = "preview_failures";
+        public static final String COL_PKG_NAME = "pkg_name";
+        public static final String COL_GENERATOR = "generator";
+        public static final String COL_APK_FINGERPRINT = "apk_fingerprint";
+        public static final String COL_FAILURES = "failures";
+        // Wall clock time before which the generator is not run again
+        public static final String COL_RETRY_AFTER = "retry_after";
+
+        private static final String PREVIEW_FAILURES_TABLE_CREATE =
+                "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                        COL_PKG_NAME + " TEXT NOT NULL, " +
+                        COL_GENERATOR + " TEXT NOT NULL, " +
+                        COL_APK_FINGERPRINT + " TEXT, " +
+                        COL_FAILURES + " INTEGER DEFAULT 0, " +
+                        COL_RETRY_AFTER + " INTEGER DEFAULT 0, " +
+                        "PRIMARY KEY (" + COL_PKG_NAME + ", " + COL_GENERATOR + ")" +
+                        ")";
+    }
+
     private static boolean isSystemDefault(Context context) {
         // == is okay since we are checking if what is returned is the same constant string value
         return ThemeConfig.SYSTEM_DEFAULT == ThemeUtils.getDefaultThemePackageName(context);
@@ -27,14 +27,20 @@ import android.content.UriMatcher;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Process;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Log;
 
+import cyanogenmod.platform.Manifest;
 import cyanogenmod.providers.ThemesContract;
 import cyanogenmod.providers.ThemesContract.MixnMatchColumns;
 import cyanogenmod.providers.ThemesContract.PreviewColumns;
@@ -45,19 +51,32 @@ import cyanogenmod.themes.ThemeChangeRequest.RequestType;
 
 import org.cyanogenmod.internal.util.ThemeUtils;
 import org.cyanogenmod.themes.provider.ThemesOpenHelper.MixnMatchTable;
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PackageJournalTable;
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewBacklogTable;
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewBlobsTable;
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewFailuresTable;
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewFingerprintsTable;
 import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewsTable;
+import org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewWorkTable;
 import org.cyanogenmod.themes.provider.ThemesOpenHelper.ThemesTable;
+import org.cyanogenmod.themes.provider.util.ComponentFingerprints;
+import org.cyanogenmod.themes.provider.util.PreviewBlobStore;
 import org.cyanogenmod.themes.provider.util.PreviewUtils;
 import org.cyanogenmod.themes.provider.util.ProviderUtils;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import static android.content.res.ThemeConfig.SYSTEM_DEFAULT;
 
@@ -77,9 +96,134 @@ public class ThemesProvider extends ContentProvider {
 
     public static final String KEY_PROCESS_PREVIEWS = "process_previews";
 
+    /**
+     * Query parameter for {@link ThemesColumns#CONTENT_URI} which limits results to themes that
+     * implement all of the given components.  The value is a comma separated list of
+     * MODIFIES_* column names, i.e. "mods_icons,mods_overlays"
+     */
+    public static final String QUERY_PARAM_CAPABILITIES = "capabilities";
+
+    /**
+     * {@link #call(String, String, Bundle)} method returning a Bundle of provider statistics
+     */
+    public static final String METHOD_GET_STATS = "stats";
+
+    /**
+     * {@link #call(String, String, Bundle)} method returning per theme, per generator metrics
+     * of the most recent preview generation runs
+     */
+    public static final String METHOD_GET_GENERATION_STATS = "generationStats";
+
+    /**
+     * {@link #call(String, String, Bundle)} method for clients to hint that they are showing the
+     * given themes, so their previews are generated ahead of background work.  The package name
+     * is passed as the arg, or a list of them as EXTRA_PKG_NAMES.
+     */
+    public static final String METHOD_PRIORITIZE = "prioritize";
+    public static final String EXTRA_PKG_NAMES = "pkg_names";
+
+    /**
+     * Internal {@link #call(String, String, Bundle)} methods used by {@link PackageEventQueue}
+     * to journal package events while in bulk install mode and to apply them.
+     */
+    static final String METHOD_JOURNAL_PACKAGE_EVENT = "journal_package_event";
+    static final String METHOD_APPLY_PACKAGE_JOURNAL = "apply_package_journal";
+    static final String EXTRA_PACKAGE_EVENT = "package_event";
+
+    /**
+     * Internal {@link #call(String, String, Bundle)} method used by {@link PreviewPipeline} to
+     * read the asset fingerprints of a theme's previews, returned as a Bundle of generator name
+     * to fingerprint.
+     */
+    static final String METHOD_GET_PREVIEW_FINGERPRINTS = "get_preview_fingerprints";
+
+    /**
+     * Internal {@link #call(String, String, Bundle)} method used by {@link PreviewPipeline} to
+     * publish a new generation of a theme's previews.  The rows for EXTRA_PREVIEW_KEYS, or all
+     * of the theme's rows if there are none, are replaced by EXTRA_PREVIEW_ROWS, the
+     * fingerprints in EXTRA_FINGERPRINTS are stored, or cleared where null, and the work of
+     * EXTRA_GENERATOR is marked as done in a single transaction.  If EXTRA_APK_FINGERPRINT is
+     * given, the generator's success is recorded as well.
+     */
+    static final String METHOD_REPLACE_PREVIEWS = "replace_previews";
+    static final String EXTRA_PREVIEW_KEYS = "preview_keys";
+    static final String EXTRA_PREVIEW_ROWS = "preview_rows";
+    static final String EXTRA_FINGERPRINTS = "fingerprints";
+    static final String EXTRA_GENERATOR = "generator";
+    static final String EXTRA_APK_FINGERPRINT = "apk_fingerprint";
+
+    /**
+     * Internal {@link #call(String, String, Bundle)} methods used by {@link PreviewPipeline} to
+     * record a failure of EXTRA_GENERATOR that was not committed, which also ends its work in
+     * favor of retrying once the failure has backed off, and to read the generators,
+     * returned as EXTRA_GENERATORS, that are not to be run for the theme in the arg while its APK
+     * has EXTRA_APK_FINGERPRINT, see {@link PreviewFailuresTable}.
+     */
+    static final String METHOD_RECORD_PREVIEW_FAILURE = "record_preview_failure";
+    static final String METHOD_GET_SUPPRESSED_PREVIEWS = "get_suppressed_previews";
+
+    /**
+     * Internal {@link #call(String, String, Bundle)} methods used by {@link PreviewPipeline} to
+     * record the generators, EXTRA_GENERATORS, a run of the theme in the arg is about to
+     * commit, and to read those that were not committed when resuming an interrupted run.
+     */
+    static final String METHOD_START_PREVIEW_WORK = "start_preview_work";
+    static final String METHOD_GET_PREVIEW_WORK = "get_preview_work";
+    static final String EXTRA_GENERATORS = "generators";
+
+    /**
+     * Internal {@link #call(String, String, Bundle)} methods used by {@link PreviewPipeline} to
+     * register blobs it is about to reference from preview rows and to remove unused blobs.
+     * Blobs are registered by their hashes, the provider decides where they are stored.
+     */
+    static final String METHOD_REGISTER_PREVIEW_BLOBS = "register_preview_blobs";
+    static final String METHOD_COLLECT_PREVIEW_BLOBS = "collect_preview_blobs";
+    static final String EXTRA_BLOB_HASHES = "blob_hashes";
+    static final String EXTRA_BLOB_SIZES = "blob_sizes";
+
+    /**
+     * Internal {@link #call(String, String, Bundle)} method used by {@link PreviewBackfillService}
+     * to take the oldest themes in the preview backlog, at most as many as the arg.  They are
+     * returned as EXTRA_PKG_NAMES, with when each was added or last taken as
+     * EXTRA_BACKLOG_TIMES, and move to the back of the backlog.
+     */
+    static final String METHOD_TAKE_PREVIEW_BACKLOG = "take_preview_backlog";
+    static final String EXTRA_BACKLOG_TIMES = "backlog_times";
+
+    // Unreferenced blobs are kept for this long after being registered so that the rows that
+    // will reference them have time to be inserted
+    private static final long BLOB_GC_GRACE_MS = 60 * 1000;
+
+    // A deferred theme whose previews were requested by a query is not requested again for this
+    // long, so that clients requerying while it is generated do not keep resubmitting it
+    private static final long ON_DEMAND_RETRY_MS = 60 * 1000;
+
+    // Interrupted preview work is resumed this many times before the theme is given up on, as
+    // one of its generators is then likely what keeps bringing the process down
+    private static final int MAX_PREVIEW_WORK_ATTEMPTS = 3;
+
+    // A generator that failed for a theme is not run again for this long, doubling with each
+    // further failure up to the maximum, unless the theme is updated in the meantime
+    private static final long PREVIEW_FAILURE_BACKOFF_MS = 60 * 60 * 1000;
+    private static final long MAX_PREVIEW_FAILURE_BACKOFF_MS = 7 * 24 * 60 * 60 * 1000L;
+
     private final Handler mHandler = new Handler();
     private ThemesOpenHelper mDatabase;
 
+    // Set while the calling thread is applying the package journal so that notifications and
+    // preview generation are deferred until the whole batch has been committed
+    private final ThreadLocal<JournalBatch> mJournalBatch = new ThreadLocal<JournalBatch>();
+
+    // Whether themes only get their previews generated once they are queried or by the idle
+    // backfill, rather than as soon as they are installed
+    private boolean mDeferPreviews;
+    // Deferred themes whose previews have been requested on demand, mapped to when, guarded by
+    // itself
+    private final Map<String, Long> mOnDemandRequests = new HashMap<String, Long>();
+    // Set while the calling thread is syncing the database with the package manager, so that
+    // the previews of the themes it finds are generated as bulk work
+    private final ThreadLocal<Boolean> mBulkPreviews = new ThreadLocal<Boolean>();
+
     static {
         sUriMatcher.addURI(ThemesContract.AUTHORITY, "mixnmatch/", MIXNMATCH);
         sUriMatcher.addURI(ThemesContract.AUTHORITY, "mixnmatch/*", MIXNMATCH_KEY);
@@ -134,12 +278,21 @@ public class ThemesProvider extends ContentProvider {
                 String themePreviewsDir = filesDir + File.separator +
                         PreviewUtils.PREVIEWS_DIR + File.separator + pkgName;
                 PreviewGenerationService.clearThemePreviewsDir(themePreviewsDir);
+                sqlDB.delete(PreviewFingerprintsTable.TABLE_NAME,
+                        PreviewFingerprintsTable.COL_PKG_NAME + "=?", new String[] { pkgName });
+                sqlDB.delete(PreviewBacklogTable.TABLE_NAME,
+                        PreviewBacklogTable.COL_PKG_NAME + "=?", new String[] { pkgName });
+                sqlDB.delete(PreviewWorkTable.TABLE_NAME,
+                        PreviewWorkTable.COL_PKG_NAME + "=?", new String[] { pkgName });
+                sqlDB.delete(PreviewFailuresTable.TABLE_NAME,
+                        PreviewFailuresTable.COL_PKG_NAME + "=?", new String[] { pkgName });
             }
             c.close();
 
             rowsDeleted = sqlDB.delete(ThemesTable.TABLE_NAME, selection, selectionArgs);
             if (rowsDeleted > 0) {
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
+                collectPreviewBlobs();
             }
             return rowsDeleted;
         case PREVIEWS:
@@ -158,7 +311,7 @@ public class ThemesProvider extends ContentProvider {
             }
             c.close();
             if (rowsDeleted > 0) {
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
             }
             return rowsDeleted;
         case MIXNMATCH:
@@ -200,13 +353,11 @@ public class ThemesProvider extends ContentProvider {
                 int state = values.getAsInteger(ThemesColumns.INSTALL_STATE);
                 processPreviews = state == ThemesColumns.InstallState.INSTALLED;
             }
+            values.put(ThemesTable.COL_CAPABILITIES, ThemesTable.getCapabilitiesMask(values));
             id = sqlDB.insert(ThemesOpenHelper.ThemesTable.TABLE_NAME, null, values);
             if (processPreviews) {
-                Intent intent = new Intent(getContext(), PreviewGenerationService.class);
-                intent.setAction(PreviewGenerationService.ACTION_INSERT);
-                intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME,
+                generatePreviews(PreviewGenerationService.ACTION_INSERT,
                         values.getAsString(ThemesColumns.PKG_NAME));
-                getContext().startService(intent);
             }
             break;
         case MIXNMATCH:
@@ -218,7 +369,7 @@ public class ThemesProvider extends ContentProvider {
         }
         if (id >= 0) {
             ContentUris.withAppendedId(uri, id);
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return uri;
     }
@@ -226,6 +377,7 @@ public class ThemesProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mDatabase = new ThemesOpenHelper(getContext());
+        mDeferPreviews = getContext().getResources().getBoolean(R.bool.config_deferPreviews);
 
         /**
          * Sync database with package manager
@@ -247,6 +399,8 @@ public class ThemesProvider extends ContentProvider {
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         SQLiteDatabase db = mDatabase.getReadableDatabase();
         String groupBy = null;
+        final String themeSelection = selection;
+        final String[] themeSelectionArgs = selectionArgs;
         /*
          * Choose the table to query and a sort order based on the code returned for the incoming
          * URI. Here, too, only the statements for table 3 are shown.
@@ -254,6 +408,10 @@ public class ThemesProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
         case THEMES:
             queryBuilder.setTables(ThemesOpenHelper.ThemesTable.TABLE_NAME);
+            String capabilities = uri.getQueryParameter(QUERY_PARAM_CAPABILITIES);
+            if (capabilities != null) {
+                queryBuilder.appendWhere(getCapabilitiesWhere(db, capabilities));
+            }
             break;
         case THEMES_ID:
             queryBuilder.setTables(ThemesOpenHelper.ThemesTable.TABLE_NAME);
@@ -267,6 +425,7 @@ public class ThemesProvider extends ContentProvider {
             queryBuilder.appendWhere(MixnMatchColumns.COL_KEY + "=" + uri.getLastPathSegment());
             break;
         case COMPONENTS_PREVIEWS:
+            requestDeferredPreviews(db, themeSelection, themeSelectionArgs);
             projection = ProviderUtils.modifyPreviewsProjection(projection);
             selection = ProviderUtils.modifyPreviewsSelection(selection, projection);
             selectionArgs = ProviderUtils.modifyPreviewsSelectionArgs(selectionArgs, projection);
@@ -274,6 +433,7 @@ public class ThemesProvider extends ContentProvider {
             queryBuilder.setTables(THEMES_PREVIEWS_INNER_JOIN);
             break;
         case PREVIEWS:
+            requestDeferredPreviews(db, themeSelection, themeSelectionArgs);
             projection = ProviderUtils.modifyPreviewsProjection(projection);
             selection = ProviderUtils.modifyDefaultPreviewsSelection(selection, projection);
             selectionArgs = ProviderUtils.modifyPreviewsSelectionArgs(selectionArgs, projection);
@@ -285,6 +445,9 @@ public class ThemesProvider extends ContentProvider {
             queryBuilder.appendWhere(PreviewColumns._ID + "=" + uri.getLastPathSegment());
             break;
         case APPLIED_PREVIEWS:
+            requestDeferredPreviews(db, ThemesColumns.PKG_NAME + " IN (SELECT "
+                    + MixnMatchColumns.COL_VALUE + " FROM " + MixnMatchTable.TABLE_NAME + ")",
+                    null);
             return getAppliedPreviews(db);
         default:
             return null;
@@ -322,14 +485,17 @@ public class ThemesProvider extends ContentProvider {
                 int state = values.getAsInteger(ThemesColumns.INSTALL_STATE);
                 updatePreviews = state == ThemesColumns.InstallState.INSTALLED;
             }
-            rowsUpdated = sqlDB.update(ThemesTable.TABLE_NAME, values, selection, selectionArgs);
+            if (ThemesTable.hasCapabilityColumns(values)) {
+                rowsUpdated = updateThemesAndCapabilities(sqlDB, values, selection,
+                        selectionArgs);
+            } else {
+                rowsUpdated = sqlDB.update(ThemesTable.TABLE_NAME, values, selection,
+                        selectionArgs);
+            }
             if (updateNotTriggeredByContentProvider(values) && updatePreviews) {
-                Intent intent = new Intent(getContext(), PreviewGenerationService.class);
-                intent.setAction(PreviewGenerationService.ACTION_UPDATE);
-                intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, pkgName);
-                getContext().startService(intent);
+                generatePreviews(PreviewGenerationService.ACTION_UPDATE, pkgName);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
             break;
         case MIXNMATCH:
             // Make the current value the previous value
@@ -344,19 +510,95 @@ public class ThemesProvider extends ContentProvider {
                 values.put(MixnMatchColumns.COL_PREV_VALUE, prevValue);
             }
             rowsUpdated = sqlDB.update(MixnMatchTable.TABLE_NAME, values, selection, selectionArgs);
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
             break;
         case MIXNMATCH_KEY:
             // Don't support right now. Any need?
             break;
         case PREVIEWS:
             rowsUpdated = sqlDB.update(PreviewsTable.TABLE_NAME, values, selection, selectionArgs);
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
             break;
         }
         return rowsUpdated;
     }
 
+    /**
+     * Updates themes and recomputes the capabilities mask of the rows that were updated.  The
+     * rows are picked before the update, since it may change which rows the selection matches.
+     */
+    private static int updateThemesAndCapabilities(SQLiteDatabase db, ContentValues values,
+            String selection, String[] selectionArgs) {
+        db.beginTransaction();
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            Cursor c = db.query(ThemesTable.TABLE_NAME, new String[] { ThemesColumns._ID },
+                    selection, selectionArgs, null, null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                }
+                c.close();
+            }
+            final int rowsUpdated = db.update(ThemesTable.TABLE_NAME, values, selection,
+                    selectionArgs);
+            if (!ids.isEmpty()) {
+                ThemesTable.updateCapabilitiesMask(db,
+                        ThemesColumns._ID + " IN (" + TextUtils.join(",", ids) + ")", null);
+            }
+            db.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Builds a where clause matching themes whose capabilities contain every component listed
+     * in capabilities.  A bitwise test can not use an index, so the distinct masks in use are
+     * read from the capabilities index and the matching ones are selected with IN, which can.
+     * @param db Readable database
+     * @param capabilities Comma separated list of MODIFIES_* columns
+     * @return Where clause on the capabilities column, matching no rows if no theme has all of
+     *         the capabilities
+     */
+    private String getCapabilitiesWhere(SQLiteDatabase db, String capabilities) {
+        int required = 0;
+        for (String component : capabilities.split(",")) {
+            component = component.trim();
+            if (component.isEmpty()) continue;
+            int bit = ThemesTable.getCapabilityBit(component);
+            if (bit == 0) {
+                throw new IllegalArgumentException("Unknown capability " + component);
+            }
+            required |= bit;
+        }
+
+        StringBuilder sb = new StringBuilder(ThemesTable.COL_CAPABILITIES).append(" IN (");
+        String delimiter = "";
+        Cursor c = db.query(true, ThemesTable.TABLE_NAME,
+                new String[] { ThemesTable.COL_CAPABILITIES }, null, null, null, null, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                int mask = c.getInt(0);
+                if ((mask & required) == required) {
+                    sb.append(delimiter).append(mask);
+                    delimiter = ",";
+                }
+            }
+            c.close();
+        }
+        return sb.append(")").toString();
+    }
+
+    private static String makePlaceholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
     /**
      * Queries the currently applied components and creates a SQLite statement consisting
      * of a series of (SELECT ...) statements
@@ -445,6 +687,768 @@ public class ThemesProvider extends ContentProvider {
         return null;
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_JOURNAL_PACKAGE_EVENT.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.WRITE_THEMES, null);
+            ContentValues values = new ContentValues();
+            values.put(PackageJournalTable.COL_PKG_NAME, arg);
+            values.put(PackageJournalTable.COL_EVENT, extras.getInt(EXTRA_PACKAGE_EVENT));
+            values.put(PackageJournalTable.COL_TIME, System.currentTimeMillis());
+            mDatabase.getWritableDatabase().insert(PackageJournalTable.TABLE_NAME, null, values);
+            return null;
+        } else if (METHOD_APPLY_PACKAGE_JOURNAL.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.WRITE_THEMES, null);
+            applyPackageJournal();
+            return null;
+        } else if (METHOD_GET_PREVIEW_FINGERPRINTS.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.READ_THEMES, null);
+            return getPreviewFingerprints(arg);
+        } else if (METHOD_REPLACE_PREVIEWS.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.WRITE_THEMES, null);
+            ArrayList<ContentValues> rows = extras.getParcelableArrayList(EXTRA_PREVIEW_ROWS);
+            replacePreviews(arg, extras.getStringArray(EXTRA_PREVIEW_KEYS), rows,
+                    extras.getBundle(EXTRA_FINGERPRINTS), extras.getString(EXTRA_GENERATOR),
+                    extras.getString(EXTRA_APK_FINGERPRINT));
+            return null;
+        } else if (METHOD_RECORD_PREVIEW_FAILURE.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.WRITE_THEMES, null);
+            failPreviewWork(arg, extras.getString(EXTRA_GENERATOR),
+                    extras.getString(EXTRA_APK_FINGERPRINT));
+            return null;
+        } else if (METHOD_GET_SUPPRESSED_PREVIEWS.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.READ_THEMES, null);
+            return getSuppressedPreviews(arg, extras.getString(EXTRA_APK_FINGERPRINT));
+        } else if (METHOD_START_PREVIEW_WORK.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.WRITE_THEMES, null);
+            startPreviewWork(arg, extras.getStringArray(EXTRA_GENERATORS));
+            return null;
+        } else if (METHOD_GET_PREVIEW_WORK.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.READ_THEMES, null);
+            return getPreviewWork(arg);
+        } else if (METHOD_REGISTER_PREVIEW_BLOBS.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.WRITE_THEMES, null);
+            registerPreviewBlobs(extras.getStringArray(EXTRA_BLOB_HASHES),
+                    extras.getLongArray(EXTRA_BLOB_SIZES));
+            return null;
+        } else if (METHOD_COLLECT_PREVIEW_BLOBS.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.WRITE_THEMES, null);
+            collectPreviewBlobs();
+            return null;
+        } else if (METHOD_TAKE_PREVIEW_BACKLOG.equals(method)) {
+            enforceCallingSelf();
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.WRITE_THEMES, null);
+            return takePreviewBacklog(arg);
+        } else if (METHOD_PRIORITIZE.equals(method)) {
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.READ_THEMES, null);
+            String[] pkgNames = extras != null ? extras.getStringArray(EXTRA_PKG_NAMES) : null;
+            if (arg != null || pkgNames != null) {
+                Intent intent = new Intent(getContext(), PreviewGenerationService.class);
+                intent.setAction(PreviewGenerationService.ACTION_PRIORITIZE);
+                intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, arg);
+                intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAMES, pkgNames);
+                getContext().startService(intent);
+            }
+            return null;
+        } else if (METHOD_GET_STATS.equals(method)) {
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.READ_THEMES, null);
+            Bundle stats = new Bundle();
+            PackageEventQueue.getInstance(getContext()).writeStats(stats);
+            ReapplyScheduler.getInstance(getContext()).writeStats(stats);
+            writePreviewBlobStats(stats);
+            stats.putLong("preview_backlog", DatabaseUtils.queryNumEntries(
+                    mDatabase.getReadableDatabase(), PreviewBacklogTable.TABLE_NAME));
+            stats.putLong("preview_work", DatabaseUtils.queryNumEntries(
+                    mDatabase.getReadableDatabase(), PreviewWorkTable.TABLE_NAME));
+            stats.putLong("preview_failures", DatabaseUtils.queryNumEntries(
+                    mDatabase.getReadableDatabase(), PreviewFailuresTable.TABLE_NAME));
+            PreviewPipeline.getInstance(getContext()).writeStats(stats);
+            PreviewBackfillService.writeStats(stats);
+            return stats;
+        } else if (METHOD_GET_GENERATION_STATS.equals(method)) {
+            getContext().enforceCallingOrSelfPermission(Manifest.permission.READ_THEMES, null);
+            return PreviewPipeline.getInstance(getContext()).getGenerationStats();
+        }
+        return null;
+    }
+
+    /**
+     * The internal {@link #call(String, String, Bundle)} methods hand out and modify the
+     * provider's bookkeeping, so only the app's own processes may use them.
+     * @throws SecurityException if the caller is another app
+     */
+    private static void enforceCallingSelf() {
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("Internal method called by uid "
+                    + Binder.getCallingUid());
+        }
+    }
+
+    private Bundle getPreviewFingerprints(String pkgName) {
+        Bundle fingerprints = new Bundle();
+        String[] columns = { PreviewFingerprintsTable.COL_COMPONENT,
+                PreviewFingerprintsTable.COL_FINGERPRINT };
+        Cursor c = mDatabase.getReadableDatabase().query(PreviewFingerprintsTable.TABLE_NAME,
+                columns, PreviewFingerprintsTable.COL_PKG_NAME + "=?", new String[] { pkgName },
+                null, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                fingerprints.putString(c.getString(0), c.getString(1));
+            }
+            c.close();
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Swaps in a new generation of previews for a theme, or for some of its components.  Readers
+     * either see all of the old rows or all of the new ones, never a component with missing
+     * previews, and observers are notified once for the whole swap rather than once per row.
+     * @param keys Preview keys being replaced or null to replace all of the theme's previews
+     * @param fingerprints Generator fingerprints to store, null values clear a fingerprint
+     * @param generator Generator whose work is committed by this swap, if any
+     * @param apkFingerprint Fingerprint of the APK the previews were generated from, if the
+     *        generator's success is to be recorded
+     */
+    private void replacePreviews(String pkgName, String[] keys, List<ContentValues> rows,
+            Bundle fingerprints, String generator, String apkFingerprint) {
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        boolean changed = false;
+        db.beginTransaction();
+        try {
+            if (generator != null) {
+                db.delete(PreviewWorkTable.TABLE_NAME, PreviewWorkTable.COL_PKG_NAME + "=? AND "
+                        + PreviewWorkTable.COL_GENERATOR + "=?",
+                        new String[] { pkgName, generator });
+                if (apkFingerprint != null) {
+                    db.delete(PreviewFailuresTable.TABLE_NAME, PreviewFailuresTable.COL_PKG_NAME
+                            + "=? AND " + PreviewFailuresTable.COL_GENERATOR + "=?",
+                            new String[] { pkgName, generator });
+                }
+            }
+
+            Cursor c = db.query(ThemesTable.TABLE_NAME, new String[] { ThemesColumns._ID },
+                    ThemesColumns.PKG_NAME + "=?", new String[] { pkgName }, null, null, null);
+            if (c == null) return;
+            final long themeId;
+            try {
+                // The theme was removed while its previews were being generated
+                if (!c.moveToFirst()) {
+                    db.setTransactionSuccessful();
+                    return;
+                }
+                themeId = c.getLong(0);
+            } finally {
+                c.close();
+            }
+
+            String where = PreviewColumns.THEME_ID + "=" + themeId;
+            if (keys != null) {
+                where += " AND " + PreviewColumns.COL_KEY + " IN ("
+                        + makePlaceholders(keys.length) + ")";
+            }
+            changed = db.delete(PreviewsTable.TABLE_NAME, where, keys) > 0;
+            if (rows != null) {
+                for (ContentValues values : rows) {
+                    values.put(PreviewColumns.THEME_ID, themeId);
+                    db.insert(PreviewsTable.TABLE_NAME, null, values);
+                }
+                changed |= !rows.isEmpty();
+            }
+
+            if (fingerprints != null) {
+                final String whereComponent = PreviewFingerprintsTable.COL_PKG_NAME + "=? AND "
+                        + PreviewFingerprintsTable.COL_COMPONENT + "=?";
+                ContentValues values = new ContentValues();
+                for (String component : fingerprints.keySet()) {
+                    final String fingerprint = fingerprints.getString(component);
+                    if (fingerprint == null) {
+                        db.delete(PreviewFingerprintsTable.TABLE_NAME, whereComponent,
+                                new String[] { pkgName, component });
+                        continue;
+                    }
+                    values.clear();
+                    values.put(PreviewFingerprintsTable.COL_PKG_NAME, pkgName);
+                    values.put(PreviewFingerprintsTable.COL_COMPONENT, component);
+                    values.put(PreviewFingerprintsTable.COL_FINGERPRINT, fingerprint);
+                    if (db.update(PreviewFingerprintsTable.TABLE_NAME, values, whereComponent,
+                            new String[] { pkgName, component }) == 0) {
+                        db.insert(PreviewFingerprintsTable.TABLE_NAME, null, values);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (changed) {
+            notifyChange(PreviewColumns.CONTENT_URI);
+        }
+        if (SYSTEM_DEFAULT.equals(pkgName) && isPreviewWorkComplete(db, pkgName)) {
+            SystemPreviewCache.save(getContext(), db);
+        }
+    }
+
+    /**
+     * @return True if none of the theme's generators are still to be committed or have failed
+     */
+    private static boolean isPreviewWorkComplete(SQLiteDatabase db, String pkgName) {
+        return DatabaseUtils.queryNumEntries(db, PreviewWorkTable.TABLE_NAME,
+                PreviewWorkTable.COL_PKG_NAME + "=?", new String[] { pkgName }) == 0
+                && DatabaseUtils.queryNumEntries(db, PreviewFailuresTable.TABLE_NAME,
+                PreviewFailuresTable.COL_PKG_NAME + "=?", new String[] { pkgName }) == 0;
+    }
+
+    /**
+     * Records the generators a run is about to commit for a theme.  From here on the work is
+     * tracked in the work table rather than the backlog, so that it survives the process dying
+     * before all of it is committed.
+     */
+    private void startPreviewWork(String pkgName, String[] generators) {
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(PreviewBacklogTable.TABLE_NAME, PreviewBacklogTable.COL_PKG_NAME + "=?",
+                    new String[] { pkgName });
+            if (generators != null) {
+                ContentValues values = new ContentValues();
+                for (String generator : generators) {
+                    values.clear();
+                    values.put(PreviewWorkTable.COL_PKG_NAME, pkgName);
+                    values.put(PreviewWorkTable.COL_GENERATOR, generator);
+                    values.put(PreviewWorkTable.COL_TIME, System.currentTimeMillis());
+                    // Work left over from an interrupted run keeps its attempts
+                    db.insertWithOnConflict(PreviewWorkTable.TABLE_NAME, null, values,
+                            SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        synchronized (mOnDemandRequests) {
+            mOnDemandRequests.remove(pkgName);
+        }
+    }
+
+    private Bundle getPreviewWork(String pkgName) {
+        List<String> generators = new ArrayList<String>();
+        Cursor c = mDatabase.getReadableDatabase().query(PreviewWorkTable.TABLE_NAME,
+                new String[] { PreviewWorkTable.COL_GENERATOR },
+                PreviewWorkTable.COL_PKG_NAME + "=?", new String[] { pkgName },
+                null, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                generators.add(c.getString(0));
+            }
+            c.close();
+        }
+        Bundle result = new Bundle();
+        result.putStringArray(EXTRA_GENERATORS,
+                generators.toArray(new String[generators.size()]));
+        return result;
+    }
+
+    /**
+     * Records that a generator failed for a theme and works out when it may be run again.
+     * Consecutive failures for the same APK back off exponentially, while a failure for a new
+     * version of the theme starts over.
+     */
+    private static void recordPreviewFailure(SQLiteDatabase db, String pkgName, String generator,
+            String apkFingerprint) {
+        final String where = PreviewFailuresTable.COL_PKG_NAME + "=? AND "
+                + PreviewFailuresTable.COL_GENERATOR + "=?";
+        final String[] whereArgs = { pkgName, generator };
+        int failures = 0;
+        Cursor c = db.query(PreviewFailuresTable.TABLE_NAME, new String[] {
+                PreviewFailuresTable.COL_APK_FINGERPRINT, PreviewFailuresTable.COL_FAILURES },
+                where, whereArgs, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst() && apkFingerprint.equals(c.getString(0))) {
+                failures = c.getInt(1);
+            }
+            c.close();
+        }
+        failures++;
+
+        final long backoffMs = Math.min(MAX_PREVIEW_FAILURE_BACKOFF_MS,
+                PREVIEW_FAILURE_BACKOFF_MS << Math.min(failures - 1, 16));
+        ContentValues values = new ContentValues();
+        values.put(PreviewFailuresTable.COL_PKG_NAME, pkgName);
+        values.put(PreviewFailuresTable.COL_GENERATOR, generator);
+        values.put(PreviewFailuresTable.COL_APK_FINGERPRINT, apkFingerprint);
+        values.put(PreviewFailuresTable.COL_FAILURES, failures);
+        values.put(PreviewFailuresTable.COL_RETRY_AFTER, System.currentTimeMillis() + backoffMs);
+        db.insertWithOnConflict(PreviewFailuresTable.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        Log.w(TAG, generator + " previews for " + pkgName + " failed " + failures
+                + " times, not retrying for " + (backoffMs / 1000) + "s");
+    }
+
+    private void failPreviewWork(String pkgName, String generator, String apkFingerprint) {
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(PreviewWorkTable.TABLE_NAME, PreviewWorkTable.COL_PKG_NAME + "=? AND "
+                    + PreviewWorkTable.COL_GENERATOR + "=?", new String[] { pkgName, generator });
+            recordPreviewFailure(db, pkgName, generator, apkFingerprint);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private Bundle getSuppressedPreviews(String pkgName, String apkFingerprint) {
+        List<String> generators = new ArrayList<String>();
+        Cursor c = mDatabase.getReadableDatabase().query(PreviewFailuresTable.TABLE_NAME,
+                new String[] { PreviewFailuresTable.COL_GENERATOR },
+                PreviewFailuresTable.COL_PKG_NAME + "=? AND "
+                        + PreviewFailuresTable.COL_APK_FINGERPRINT + "=? AND "
+                        + PreviewFailuresTable.COL_RETRY_AFTER + ">?",
+                new String[] { pkgName, apkFingerprint,
+                        String.valueOf(System.currentTimeMillis()) },
+                null, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                generators.add(c.getString(0));
+            }
+            c.close();
+        }
+        Bundle result = new Bundle();
+        result.putStringArray(EXTRA_GENERATORS,
+                generators.toArray(new String[generators.size()]));
+        return result;
+    }
+
+    /**
+     * @return See {@link ComponentFingerprints#forPackage}, or null if the theme is not installed
+     */
+    private String getApkFingerprint(String pkgName) {
+        if (SYSTEM_DEFAULT.equals(pkgName)) {
+            return ComponentFingerprints.forPackage(null);
+        }
+        try {
+            return ComponentFingerprints.forPackage(
+                    getContext().getPackageManager().getPackageInfo(pkgName, 0));
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Resumes preview work that was interrupted by the process dying.  Each resume counts as an
+     * attempt, and themes whose work has been resumed too often are left with the previews
+     * that were committed.
+     */
+    private void resumePreviewWork() {
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        final Set<String> pkgNames = new LinkedHashSet<String>();
+        db.beginTransaction();
+        try {
+            db.execSQL("UPDATE " + PreviewWorkTable.TABLE_NAME + " SET "
+                    + PreviewWorkTable.COL_ATTEMPTS + "=" + PreviewWorkTable.COL_ATTEMPTS + "+1");
+            final String abandoned = PreviewWorkTable.COL_ATTEMPTS + ">"
+                    + MAX_PREVIEW_WORK_ATTEMPTS;
+            Cursor c = db.query(PreviewWorkTable.TABLE_NAME, new String[] {
+                    PreviewWorkTable.COL_PKG_NAME, PreviewWorkTable.COL_GENERATOR }, abandoned,
+                    null, null, null, null);
+            if (c != null) {
+                // Abandoned work counts as a failure, so the theme does not start over with
+                // the same generator the next time it is processed
+                while (c.moveToNext()) {
+                    final String pkgName = c.getString(0);
+                    final String generator = c.getString(1);
+                    Log.w(TAG, "Giving up on " + generator + " previews for " + pkgName
+                            + " after " + MAX_PREVIEW_WORK_ATTEMPTS + " interrupted attempts");
+                    final String apkFingerprint = getApkFingerprint(pkgName);
+                    if (apkFingerprint != null) {
+                        recordPreviewFailure(db, pkgName, generator, apkFingerprint);
+                    }
+                }
+                c.close();
+            }
+            db.delete(PreviewWorkTable.TABLE_NAME, abandoned, null);
+            c = db.query(true, PreviewWorkTable.TABLE_NAME,
+                    new String[] { PreviewWorkTable.COL_PKG_NAME }, null, null,
+                    null, null, null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    pkgNames.add(c.getString(0));
+                }
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (pkgNames.isEmpty()) return;
+
+        Log.i(TAG, "Resuming interrupted preview generation for " + pkgNames);
+        Intent intent = new Intent(getContext(), PreviewGenerationService.class);
+        intent.setAction(PreviewGenerationService.ACTION_RESUME);
+        intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAMES,
+                pkgNames.toArray(new String[pkgNames.size()]));
+        getContext().startService(intent);
+    }
+
+    /**
+     * Requests previews, ahead of other work, for the deferred themes a preview query covers.
+     * Observers of the previews are notified once they have been generated.
+     * @param selection The caller's selection, on the columns of the themes table
+     */
+    private void requestDeferredPreviews(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        if (DatabaseUtils.queryNumEntries(db, PreviewBacklogTable.TABLE_NAME) == 0) return;
+
+        String where = ThemesColumns.PKG_NAME + " IN (SELECT " + PreviewBacklogTable.COL_PKG_NAME
+                + " FROM " + PreviewBacklogTable.TABLE_NAME + ")";
+        if (selection != null) {
+            where += " AND (" + selection + ")";
+        }
+        List<String> pkgNames = new ArrayList<String>();
+        Cursor c;
+        try {
+            c = db.query(ThemesTable.TABLE_NAME, new String[] { ThemesColumns.PKG_NAME }, where,
+                    selectionArgs, null, null, null);
+        } catch (SQLiteException e) {
+            // The selection refers to preview columns, so the themes it covers cannot be told
+            // apart and the backfill will have to generate them
+            return;
+        }
+        if (c == null) return;
+        final long now = System.currentTimeMillis();
+        synchronized (mOnDemandRequests) {
+            while (c.moveToNext()) {
+                final String pkgName = c.getString(0);
+                final Long requested = mOnDemandRequests.get(pkgName);
+                if (requested == null || now - requested > ON_DEMAND_RETRY_MS) {
+                    mOnDemandRequests.put(pkgName, now);
+                    pkgNames.add(pkgName);
+                }
+            }
+        }
+        c.close();
+        if (pkgNames.isEmpty()) return;
+
+        Log.d(TAG, "Generating deferred previews on demand for " + pkgNames);
+        Intent intent = new Intent(getContext(), PreviewGenerationService.class);
+        intent.setAction(PreviewGenerationService.ACTION_UPDATE);
+        intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAMES,
+                pkgNames.toArray(new String[pkgNames.size()]));
+        intent.putExtra(PreviewGenerationService.EXTRA_PRIORITIZE, true);
+        getContext().startService(intent);
+    }
+
+    private Bundle takePreviewBacklog(String limit) {
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        List<String> pkgNames = new ArrayList<String>();
+        List<Long> times = new ArrayList<Long>();
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(PreviewBacklogTable.TABLE_NAME,
+                    new String[] { PreviewBacklogTable.COL_PKG_NAME,
+                            PreviewBacklogTable.COL_TIME },
+                    null, null, null, null, PreviewBacklogTable.COL_TIME, limit);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    pkgNames.add(c.getString(0));
+                    times.add(c.getLong(1));
+                }
+                c.close();
+            }
+            // Themes that keep failing must not hold up the rest of the backlog
+            ContentValues values = new ContentValues();
+            values.put(PreviewBacklogTable.COL_TIME, System.currentTimeMillis());
+            for (String pkgName : pkgNames) {
+                db.update(PreviewBacklogTable.TABLE_NAME, values,
+                        PreviewBacklogTable.COL_PKG_NAME + "=?", new String[] { pkgName });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        long[] timesArray = new long[times.size()];
+        for (int i = 0; i < timesArray.length; i++) {
+            timesArray[i] = times.get(i);
+        }
+        Bundle result = new Bundle();
+        result.putStringArray(EXTRA_PKG_NAMES, pkgNames.toArray(new String[pkgNames.size()]));
+        result.putLongArray(EXTRA_BACKLOG_TIMES, timesArray);
+        return result;
+    }
+
+    /**
+     * Adds the theme to the preview backlog instead of generating its previews right away when
+     * that can wait.  That is the case for bulk work, such as themes found while syncing with
+     * the package manager, unless the theme is applied, and for themes that have no previews
+     * yet when previews are only generated once needed.  Other themes are also deferred while
+     * the {@link PreviewPipeline} refuses to admit more work, unless they are applied.
+     * Backlogged themes are generated when their previews are queried or by
+     * {@link PreviewBackfillService}.
+     * @return True if the previews were deferred
+     */
+    private boolean deferPreviews(String pkgName) {
+        if (SYSTEM_DEFAULT.equals(pkgName)) return false;
+
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        if (mBulkPreviews.get() != null) {
+            if (MixnMatchTable.isApplied(db, pkgName)) return false;
+        } else if (!mDeferPreviews || DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + THEMES_PREVIEWS_INNER_JOIN + " WHERE " + ThemesColumns.PKG_NAME + "=?",
+                new String[] { pkgName }) > 0) {
+            // Themes in a journal batch are only submitted once the batch has been applied
+            final JournalBatch batch = mJournalBatch.get();
+            final int pending = batch != null ? batch.previews.size() : 0;
+            if (PreviewPipeline.getInstance(getContext()).admit(pending)
+                    || MixnMatchTable.isApplied(db, pkgName)) {
+                return false;
+            }
+            Log.d(TAG, "Preview generation is saturated, deferring " + pkgName);
+        }
+
+        PreviewBacklogTable.add(db, pkgName);
+        PreviewBackfillService.schedule(getContext());
+        return true;
+    }
+
+    /**
+     * Adds the blobs if they are not yet known and refreshes their registration time so they
+     * are not collected before the rows referencing them are inserted.
+     * @throws IllegalArgumentException if any of the hashes is not a valid blob hash
+     */
+    private void registerPreviewBlobs(String[] hashes, long[] sizes) {
+        for (String hash : hashes) {
+            if (!PreviewBlobStore.isValidHash(hash)) {
+                throw new IllegalArgumentException("Invalid preview blob hash " + hash);
+            }
+        }
+        final PreviewBlobStore blobStore =
+                new PreviewBlobStore(getContext().getFilesDir().getAbsolutePath());
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        final long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < hashes.length; i++) {
+                values.clear();
+                values.put(PreviewBlobsTable.COL_TIME, now);
+                if (db.update(PreviewBlobsTable.TABLE_NAME, values,
+                        PreviewBlobsTable.COL_HASH + "=?", new String[] { hashes[i] }) == 0) {
+                    values.put(PreviewBlobsTable.COL_HASH, hashes[i]);
+                    values.put(PreviewBlobsTable.COL_PATH, blobStore.getPath(hashes[i]));
+                    values.put(PreviewBlobsTable.COL_SIZE, sizes[i]);
+                    db.insert(PreviewBlobsTable.TABLE_NAME, null, values);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes blobs that are no longer referenced by any preview.  Runs under
+     * {@link PreviewBlobStore#sLock} so that a blob can not be registered again and found to
+     * exist between its row being deleted and its file being unlinked.
+     */
+    private void collectPreviewBlobs() {
+        synchronized (PreviewBlobStore.sLock) {
+            final SQLiteDatabase db = mDatabase.getWritableDatabase();
+            final String where = PreviewBlobsTable.COL_REF_COUNT + "<=0 AND "
+                    + PreviewBlobsTable.COL_TIME + "<?";
+            final String[] whereArgs = {
+                    String.valueOf(System.currentTimeMillis() - BLOB_GC_GRACE_MS) };
+            List<String> paths = new ArrayList<String>();
+            db.beginTransaction();
+            try {
+                Cursor c = db.query(PreviewBlobsTable.TABLE_NAME,
+                        new String[] { PreviewBlobsTable.COL_PATH }, where, whereArgs,
+                        null, null, null);
+                if (c != null) {
+                    while (c.moveToNext()) {
+                        paths.add(c.getString(0));
+                    }
+                    c.close();
+                }
+                db.delete(PreviewBlobsTable.TABLE_NAME, where, whereArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // Only files in the blob store are ever deleted, whatever the rows say
+            final PreviewBlobStore blobStore =
+                    new PreviewBlobStore(getContext().getFilesDir().getAbsolutePath());
+            for (String path : paths) {
+                if (blobStore.isBlobPath(path)) {
+                    new File(path).delete();
+                } else {
+                    Log.w(TAG, "Not deleting preview blob outside of the blob store " + path);
+                }
+            }
+            if (paths.size() > 0) {
+                Log.d(TAG, "Collected " + paths.size() + " unused preview blobs");
+            }
+        }
+    }
+
+    private void writePreviewBlobStats(Bundle stats) {
+        Cursor c = mDatabase.getReadableDatabase().rawQuery("SELECT COUNT(*), TOTAL("
+                + PreviewBlobsTable.COL_SIZE + "), TOTAL(" + PreviewBlobsTable.COL_REF_COUNT
+                + "), TOTAL(" + PreviewBlobsTable.COL_SIZE + "*" + PreviewBlobsTable.COL_REF_COUNT
+                + ") FROM " + PreviewBlobsTable.TABLE_NAME, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                stats.putInt("preview_blobs", c.getInt(0));
+                // Bytes on disk and bytes that would be on disk without deduplication
+                stats.putLong("preview_blob_bytes", c.getLong(1));
+                stats.putLong("preview_blob_references", c.getLong(2));
+                stats.putLong("preview_referenced_bytes", c.getLong(3));
+            }
+            c.close();
+        }
+    }
+
+    /**
+     * Applies all journaled package events in a single transaction.  Events for the same package
+     * are merged, change notifications are sent once for the whole batch and all of the themes
+     * that need previews are handed to {@link PreviewGenerationService} in one request.
+     */
+    private void applyPackageJournal() {
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        final JournalBatch batch = new JournalBatch();
+        int count = 0;
+        db.beginTransaction();
+        mJournalBatch.set(batch);
+        try {
+            String[] columns = { PackageJournalTable.COL_ID, PackageJournalTable.COL_PKG_NAME,
+                    PackageJournalTable.COL_EVENT };
+            Cursor c = db.query(PackageJournalTable.TABLE_NAME, columns, null, null, null, null,
+                    PackageJournalTable.COL_ID);
+            Map<String, PackageEventQueue.PackageEvent> events =
+                    new LinkedHashMap<String, PackageEventQueue.PackageEvent>();
+            long maxId = -1;
+            if (c != null) {
+                while (c.moveToNext()) {
+                    maxId = c.getLong(0);
+                    String pkgName = c.getString(1);
+                    PackageEventQueue.PackageEvent event = events.get(pkgName);
+                    if (event == null) {
+                        event = new PackageEventQueue.PackageEvent(pkgName);
+                        events.put(pkgName, event);
+                    }
+                    event.merge(c.getInt(2));
+                    count++;
+                }
+                c.close();
+            }
+
+            SyncContext sync = new SyncContext(getContext());
+            for (PackageEventQueue.PackageEvent event : events.values()) {
+                try {
+                    PackageEventQueue.applyEvent(sync, event);
+                } catch (NameNotFoundException e) {
+                    Log.e(TAG, "Unable to apply journaled event for " + event.pkgName, e);
+                }
+            }
+            db.delete(PackageJournalTable.TABLE_NAME, PackageJournalTable.COL_ID + "<=?",
+                    new String[] { String.valueOf(maxId) });
+            db.setTransactionSuccessful();
+        } finally {
+            mJournalBatch.remove();
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            Log.d(TAG, "Applied " + count + " journaled package events, generating previews for "
+                    + batch.previews.size() + " themes");
+        }
+        for (Uri uri : batch.notifications) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        // One request per action, since inserts and updates are generated differently
+        Map<String, List<String>> pkgNamesByAction = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, String> preview : batch.previews.entrySet()) {
+            List<String> pkgNames = pkgNamesByAction.get(preview.getValue());
+            if (pkgNames == null) {
+                pkgNames = new ArrayList<String>();
+                pkgNamesByAction.put(preview.getValue(), pkgNames);
+            }
+            pkgNames.add(preview.getKey());
+        }
+        for (Map.Entry<String, List<String>> entry : pkgNamesByAction.entrySet()) {
+            Intent intent = new Intent(getContext(), PreviewGenerationService.class);
+            intent.setAction(entry.getKey());
+            intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAMES,
+                    entry.getValue().toArray(new String[entry.getValue().size()]));
+            getContext().startService(intent);
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        JournalBatch batch = mJournalBatch.get();
+        if (batch != null) {
+            batch.notifications.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private void generatePreviews(String action, String pkgName) {
+        if (deferPreviews(pkgName)) return;
+
+        JournalBatch batch = mJournalBatch.get();
+        if (batch != null) {
+            // A theme inserted within the batch stays an insert if it is also updated
+            if (!PreviewGenerationService.ACTION_INSERT.equals(batch.previews.get(pkgName))) {
+                batch.previews.put(pkgName, action);
+            }
+        } else {
+            Intent intent = new Intent(getContext(), PreviewGenerationService.class);
+            intent.setAction(action);
+            intent.putExtra(PreviewGenerationService.EXTRA_PKG_NAME, pkgName);
+            getContext().startService(intent);
+        }
+    }
+
+    private static class JournalBatch {
+        // Themes to generate previews for, mapped to the action to generate them with
+        final Map<String, String> previews = new LinkedHashMap<String, String>();
+        final Set<Uri> notifications = new LinkedHashSet<Uri>();
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        PackageEventQueue.getInstance(getContext()).dump(pw);
+        ReapplyScheduler.getInstance(getContext()).dump(pw);
+        Bundle blobStats = new Bundle();
+        writePreviewBlobStats(blobStats);
+        pw.println("PreviewBlobs:");
+        pw.println("  blobs=" + blobStats.getInt("preview_blobs")
+                + " bytes=" + blobStats.getLong("preview_blob_bytes")
+                + " references=" + blobStats.getLong("preview_blob_references")
+                + " referencedBytes=" + blobStats.getLong("preview_referenced_bytes"));
+        pw.println("PreviewBacklog:");
+        pw.println("  deferPreviews=" + mDeferPreviews + " themes=" + DatabaseUtils.queryNumEntries(
+                mDatabase.getReadableDatabase(), PreviewBacklogTable.TABLE_NAME));
+        pw.println("  work=" + DatabaseUtils.queryNumEntries(
+                mDatabase.getReadableDatabase(), PreviewWorkTable.TABLE_NAME)
+                + " failures=" + DatabaseUtils.queryNumEntries(
+                        mDatabase.getReadableDatabase(), PreviewFailuresTable.TABLE_NAME));
+        PreviewBackfillService.dump(pw);
+    }
+
     /**
      * When there is an insert or update to a theme, an async service will kick off to update
      * several of the preview image columns. Since this service also calls a 2nd update on the
@@ -497,6 +1501,9 @@ public class ThemesProvider extends ContentProvider {
         public void run() {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
+            // Apply any package events journaled before the process last died
+            applyPackageJournal();
+
             long start;
 
             if (DEBUG) {
@@ -504,13 +1511,19 @@ public class ThemesProvider extends ContentProvider {
             }
 
             SQLiteDatabase db = mDb;
+            SyncContext sync = new SyncContext(getContext());
             db.beginTransaction();
+            mBulkPreviews.set(Boolean.TRUE);
             try {
-                verifyPackages();
+                verifyPackages(sync);
                 db.setTransactionSuccessful();
             } finally {
+                mBulkPreviews.remove();
                 db.endTransaction();
+                collectPreviewBlobs();
+                resumePreviewWork();
 
+                Log.d(TAG, "VerifyInstalledThemesThread issued " + sync.getIpcCount() + " IPCs");
                 if (DEBUG) {
                     Log.d(TAG, "VerifyInstalledThemesThread took "
                             + (System.currentTimeMillis() - start) + " ms.");
@@ -518,9 +1531,9 @@ public class ThemesProvider extends ContentProvider {
             }
         }
 
-        private void verifyPackages() {
+        private void verifyPackages(SyncContext sync) {
             /* List all currently installed theme packages according to PM */
-            List<PackageInfo> packages = getContext().getPackageManager().getInstalledPackages(0);
+            List<PackageInfo> packages = sync.getInstalledPackages();
             List<PackageInfo> themePackages = new ArrayList<PackageInfo>();
             Map<String, PackageInfo> pmThemes = new HashMap<String, PackageInfo>();
             for (PackageInfo info : packages) {
@@ -537,7 +1550,7 @@ public class ThemesProvider extends ContentProvider {
             Cursor current = mDb.query(ThemesTable.TABLE_NAME, null, null, null, null, null, null);
             List<String> deleteList = new LinkedList<String>();
             List<String> updateList = new LinkedList<String>();
-            String defaultThemePkg = ThemeUtils.getDefaultThemePackageName(getContext());
+            String defaultThemePkg = sync.getDefaultThemePackageName();
             while (current.moveToNext()) {
                 int updateTimeIdx = current.getColumnIndex(
                         ThemesContract.ThemesColumns.LAST_UPDATE_TIME);
@@ -603,10 +1616,16 @@ public class ThemesProvider extends ContentProvider {
                 mService.requestThemeChange(request, false);
             }
 
+            // Query the processing state of everything we are about to write in one go
+            List<String> pending = new ArrayList<String>(pmThemes.keySet());
+            pending.addAll(updateList);
+            pending.remove(SYSTEM_DEFAULT);
+            sync.prefetchProcessingStates(pending);
+
             // Update the database after we revert to default
             deleteThemes(deleteList);
-            insertThemes(pmThemes.values());
-            updateThemes(updateList);
+            insertThemes(sync, pmThemes.values());
+            updateThemes(sync, updateList);
         }
 
         private void deleteThemes(List<String> themesToDelete) {
@@ -619,24 +1638,24 @@ public class ThemesProvider extends ContentProvider {
             Log.d(TAG, "Deleted " + rows);
         }
 
-        private void insertThemes(Collection<PackageInfo> themesToInsert) {
+        private void insertThemes(SyncContext sync, Collection<PackageInfo> themesToInsert) {
             for (PackageInfo themeInfo : themesToInsert) {
                 try {
-                    final Context context = getContext();
-                    ThemePackageHelper.insertPackage(context, themeInfo.packageName,
-                            ProviderUtils.isThemeBeingProcessed(context, themeInfo.packageName));
+                    ThemePackageHelper.insertPackage(sync, themeInfo.packageName,
+                            sync.isThemeBeingProcessed(themeInfo.packageName));
                 } catch (NameNotFoundException e) {
                     Log.e(TAG, "Unable to insert theme " + themeInfo.packageName, e);
                 }
             }
         }
 
-        private void updateThemes(List<String> themesToUpdate) {
+        private void updateThemes(SyncContext sync, List<String> themesToUpdate) {
             for (String pkgName : themesToUpdate) {
                 try {
-                    final Context context = getContext();
-                    ThemePackageHelper.updatePackage(context, pkgName,
-                            ProviderUtils.isThemeBeingProcessed(context, pkgName));
+                    // The system theme is never processed so don't bother asking
+                    final boolean isProcessing = !SYSTEM_DEFAULT.equals(pkgName)
+                            && sync.isThemeBeingProcessed(pkgName);
+                    ThemePackageHelper.updatePackage(sync, pkgName, isProcessing);
                 } catch (NameNotFoundException e) {
                     Log.e(TAG, "Unable to update theme " + pkgName, e);
                 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider.util;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Process wide budget for the bytes of preview bitmaps that may be resident at once.  Work that
+ * is about to decode or allocate bitmaps acquires its expected size first and blocks while the
+ * budget is exhausted, then releases it once the bitmaps have been encoded and recycled.  Peak
+ * bitmap memory is therefore bounded by the budget rather than by how much work runs in
+ * parallel.
+ */
+public class BitmapBudget {
+    // Share of the heap bitmaps may use
+    private static final int HEAP_FRACTION = 4;
+
+    private static BitmapBudget sInstance;
+
+    private final long mBudget;
+    private long mInUse;
+
+    // Statistics, guarded by this
+    private long mPeak;
+    private int mWaits;
+    private long mWaitMs;
+    private long mMaxWaitMs;
+
+    public static synchronized BitmapBudget getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapBudget(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+        }
+        return sInstance;
+    }
+
+    private BitmapBudget(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Blocks until the bytes are available.  A request larger than the whole budget is granted
+     * the whole budget, so it still runs, but only on its own.
+     * @return The bytes granted, which must be passed to {@link #release}
+     */
+    public synchronized long acquire(long bytes) throws InterruptedException {
+        final long granted = Math.min(bytes, mBudget);
+        if (mInUse + granted > mBudget) {
+            final long start = SystemClock.uptimeMillis();
+            mWaits++;
+            try {
+                while (mInUse + granted > mBudget) {
+                    wait();
+                }
+            } finally {
+                final long waitMs = SystemClock.uptimeMillis() - start;
+                mWaitMs += waitMs;
+                mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+            }
+        }
+        add(granted);
+        return granted;
+    }
+
+    /**
+     * Accounts for bitmaps that already exist, without blocking.  Used when the bitmaps
+     * produced turn out to be larger than what was acquired for them.
+     */
+    public synchronized void charge(long bytes) {
+        add(bytes);
+    }
+
+    public synchronized void release(long bytes) {
+        mInUse -= bytes;
+        notifyAll();
+    }
+
+    private void add(long bytes) {
+        mInUse += bytes;
+        mPeak = Math.max(mPeak, mInUse);
+    }
+
+    public synchronized void writeStats(Bundle stats) {
+        stats.putLong("bitmap_budget", mBudget);
+        stats.putLong("bitmap_budget_in_use", mInUse);
+        stats.putLong("bitmap_budget_peak", mPeak);
+        stats.putInt("bitmap_budget_waits", mWaits);
+        stats.putLong("bitmap_budget_wait_ms", mWaitMs);
+        stats.putLong("bitmap_budget_max_wait_ms", mMaxWaitMs);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("  bitmapBudget=" + mBudget + " inUse=" + mInUse + " peak=" + mPeak
+                + " waits=" + mWaits + " waitMs=" + mWaitMs + " maxWaitMs=" + mMaxWaitMs);
+    }
+}
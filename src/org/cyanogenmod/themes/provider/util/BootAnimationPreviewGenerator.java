@@ -43,13 +43,23 @@ public class BootAnimationPreviewGenerator {
 
     public Bitmap generateBootAnimationPreview(String pkgName)
             throws IOException, PackageManager.NameNotFoundException {
+        return generateBootAnimationPreview(pkgName,
+                ThemeConfig.SYSTEM_DEFAULT.equals(pkgName) ? null
+                        : mContext.createPackageContext(pkgName, 0));
+    }
+
+    /**
+     * Same as {@link #generateBootAnimationPreview(String)} but reuses an existing package
+     * context for the theme, which is ignored for the system theme.
+     */
+    public Bitmap generateBootAnimationPreview(String pkgName, Context themeCtx)
+            throws IOException, PackageManager.NameNotFoundException {
         ZipInputStream zis;
         String previewName;
         if (ThemeConfig.SYSTEM_DEFAULT.equals(pkgName)) {
             previewName = getPreviewFrameEntryName(new FileInputStream(SYSTEM_BOOT_ANI_PATH));
             zis = new ZipInputStream(new FileInputStream(SYSTEM_BOOT_ANI_PATH));
         } else {
-            final Context themeCtx = mContext.createPackageContext(pkgName, 0);
             previewName = getPreviewFrameEntryName(themeCtx.getAssets().open(THEME_BOOT_ANI_PATH));
             zis = new ZipInputStream(themeCtx.getAssets().open(THEME_BOOT_ANI_PATH));
         }
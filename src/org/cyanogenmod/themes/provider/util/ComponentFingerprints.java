@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider.util;
+
+import android.content.pm.PackageInfo;
+import android.os.Build;
+
+import org.cyanogenmod.themes.provider.PreviewGenerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Computes a fingerprint of the assets behind each preview generator's previews.  Only the zip
+ * central directory is read, so nothing is decompressed: each generator's fingerprint is a
+ * checksum of the names, CRCs and sizes of the entries at or under the asset paths it declares,
+ * see {@link PreviewGenerator#getAssetPaths}.  If a fingerprint is unchanged between two
+ * versions of a theme then so are the generator's assets, and its previews can be kept.
+ */
+public class ComponentFingerprints {
+    /**
+     * @param apkPath Path to the theme's APK
+     * @param generators Generators whose declared asset paths are fingerprinted
+     * @return Map of generator name to fingerprint for every generator whose asset paths match
+     *         anything.  Generators without any assets, such as the icons of a legacy icon pack,
+     *         which live in its resources, are left out so that they are always regenerated.
+     */
+    public static Map<String, String> compute(String apkPath,
+            Collection<PreviewGenerator> generators) throws IOException {
+        // Sort the entries so that the fingerprint does not depend on their order in the zip
+        SortedMap<String, ZipEntry> entries = new TreeMap<String, ZipEntry>();
+        ZipFile zip = new ZipFile(apkPath);
+        try {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory()) {
+                    entries.put(entry.getName(), entry);
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        Map<String, String> fingerprints = new HashMap<String, String>();
+        for (PreviewGenerator generator : generators) {
+            final CRC32 crc = new CRC32();
+            int count = 0;
+            for (String path : generator.getAssetPaths()) {
+                // Entries sharing a prefix are contiguous in sorted order, so only that range is
+                // read.  It can also hold siblings such as path-foo, which are skipped.
+                final String dir = path + "/";
+                for (ZipEntry entry : entries.subMap(path, dir + Character.MAX_VALUE).values()) {
+                    final String name = entry.getName();
+                    if (!name.equals(path) && !name.startsWith(dir)) continue;
+                    crc.update(name.getBytes(StandardCharsets.UTF_8));
+                    updateLong(crc, entry.getCrc());
+                    updateLong(crc, entry.getSize());
+                    count++;
+                }
+            }
+            if (count > 0) {
+                fingerprints.put(generator.getName(),
+                        count + ":" + Long.toHexString(crc.getValue()));
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @param info The theme's package info, null for the system theme
+     * @return Fingerprint of the theme's APK as a whole, which changes whenever the package is
+     *         updated or reinstalled.  The system theme changes with the build.
+     */
+    public static String forPackage(PackageInfo info) {
+        if (info == null) return Build.FINGERPRINT;
+        return info.versionCode + ":" + info.lastUpdateTime;
+    }
+
+    private static void updateLong(CRC32 crc, long value) {
+        for (int i = 0; i < 8; i++) {
+            crc.update((int) (value >>> (i * 8)) & 0xff);
+        }
+    }
+}
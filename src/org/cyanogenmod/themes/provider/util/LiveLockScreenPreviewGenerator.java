@@ -46,7 +46,15 @@ public class LiveLockScreenPreviewGenerator {
 
     public LiveLockScreenItems generateLiveLockScreenPreview(String pkgName)
             throws IOException, PackageManager.NameNotFoundException {
-        final Context themeCtx = mContext.createPackageContext(pkgName, 0);
+        return generateLiveLockScreenPreview(mContext.createPackageContext(pkgName, 0));
+    }
+
+    /**
+     * Same as {@link #generateLiveLockScreenPreview(String)} but reuses an existing package
+     * context for the theme.
+     */
+    public LiveLockScreenItems generateLiveLockScreenPreview(Context themeCtx)
+            throws IOException {
         final InputStream is = getPreviewInputStream(themeCtx);
         Bitmap bmp = null;
         if (is != null) {
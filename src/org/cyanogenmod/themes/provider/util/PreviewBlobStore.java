@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider.util;
+
+import android.os.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content addressed storage for encoded previews.  Each preview is stored once under the hash
+ * of its bytes in files/previews/blobs, no matter how many themes produce it.  Which blobs are
+ * still in use is tracked by the provider, see
+ * {@link org.cyanogenmod.themes.provider.ThemesOpenHelper.PreviewBlobsTable}.
+ */
+public class PreviewBlobStore {
+    public static final String BLOBS_DIR = "blobs";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int HASH_LENGTH = 40;
+
+    /**
+     * Held while blobs are registered with the provider and written, and while unused blobs are
+     * collected.  Otherwise a blob could be found to exist by {@link #write} and then be
+     * unlinked by a collection that had already decided to remove it.  Must be taken before,
+     * never inside, a database transaction.
+     */
+    public static final Object sLock = new Object();
+
+    private final String mBlobsDir;
+
+    /**
+     * @param baseDir The app's files directory
+     */
+    public PreviewBlobStore(String baseDir) {
+        final String previewsDir = PreviewUtils.getPreviewsDir(baseDir);
+        mBlobsDir = previewsDir + File.separator + BLOBS_DIR;
+        PreviewUtils.createDirIfNotExists(previewsDir);
+        PreviewUtils.createDirIfNotExists(mBlobsDir);
+    }
+
+    public static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return True if hash is a hash as produced by {@link #hash}, 40 lowercase hex digits
+     */
+    public static boolean isValidHash(String hash) {
+        if (hash == null || hash.length() != HASH_LENGTH) return false;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            final char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    public String getPath(String hash) {
+        return mBlobsDir + File.separator + hash;
+    }
+
+    /**
+     * @return True if path names a file directly inside the blobs directory
+     */
+    public boolean isBlobPath(String path) {
+        final File parent = new File(path).getParentFile();
+        return parent != null && parent.getPath().equals(mBlobsDir);
+    }
+
+    /**
+     * Writes the blob unless it is already stored.  The file is written under a temporary name
+     * and renamed into place, so a blob that exists is always complete.
+     * @return True if the blob was written, false if it already existed
+     */
+    public boolean write(String hash, byte[] data) throws IOException {
+        final File blob = new File(getPath(hash));
+        if (blob.exists()) return false;
+
+        final File tmp = new File(mBlobsDir, hash + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        FileUtils.setPermissions(tmp, FileUtils.S_IRWXU | FileUtils.S_IRWXG | FileUtils.S_IROTH,
+                -1, -1);
+        if (!tmp.renameTo(blob)) {
+            tmp.delete();
+            throw new IOException("Unable to store preview blob " + hash);
+        }
+        return true;
+    }
+}
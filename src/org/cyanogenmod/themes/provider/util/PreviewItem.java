@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * A single entry in the previews table for a theme.  Image previews start out as a bitmap, are
+ * encoded to data and finally stored in the {@link PreviewBlobStore}, whose path for the blob
+ * becomes the stored value.  Other previews, such as colors or asset paths, are stored as is.
+ */
+public class PreviewItem {
+    public final String key;
+    public final int componentId;
+    public final boolean isImage;
+    public final Bitmap.CompressFormat format;
+
+    public Bitmap bitmap;
+    public byte[] data;
+    public String value;
+    // Whether the bitmap can be recycled once it is encoded, false if it may still be in use
+    // elsewhere, e.g. in a drawable cache
+    public boolean ownsBitmap = true;
+
+    private PreviewItem(String key, int componentId, boolean isImage,
+            Bitmap.CompressFormat format) {
+        this.key = key;
+        this.componentId = componentId;
+        this.isImage = isImage;
+        this.format = format;
+    }
+
+    public static PreviewItem fromBitmap(String key, Bitmap bitmap,
+            Bitmap.CompressFormat format) {
+        PreviewItem item = new PreviewItem(key, 0, true, format);
+        item.bitmap = bitmap;
+        return item;
+    }
+
+    /**
+     * @param data An already encoded image
+     */
+    public static PreviewItem fromData(String key, int componentId, byte[] data) {
+        PreviewItem item = new PreviewItem(key, componentId, true, null);
+        item.data = data;
+        return item;
+    }
+
+    public static PreviewItem fromValue(String key, int componentId, String value) {
+        PreviewItem item = new PreviewItem(key, componentId, false, null);
+        item.value = value;
+        return item;
+    }
+
+    public static PreviewItem fromValue(String key, int value) {
+        return fromValue(key, 0, String.valueOf(value));
+    }
+
+    /**
+     * @return True if this item still needs to be encoded
+     */
+    public boolean needsEncoding() {
+        return bitmap != null && data == null;
+    }
+
+    /**
+     * Encodes the bitmap, if any, into data using this item's format and recycles it.
+     */
+    public void encode() {
+        if (needsEncoding()) {
+            data = format == Bitmap.CompressFormat.JPEG
+                    ? BitmapUtils.getBitmapBlobJpg(bitmap)
+                    : BitmapUtils.getBitmapBlobPng(bitmap);
+            if (ownsBitmap) {
+                bitmap.recycle();
+            }
+            bitmap = null;
+        }
+    }
+}
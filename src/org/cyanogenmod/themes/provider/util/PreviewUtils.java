@@ -16,16 +16,11 @@
 package org.cyanogenmod.themes.provider.util;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.FileUtils;
-import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 
 public class PreviewUtils {
-    private static final String TAG = PreviewUtils.class.getSimpleName();
-
     public static final String PREVIEWS_DIR = "previews";
 
     public static boolean dirExists(String dirPath) {
@@ -66,45 +61,4 @@ public class PreviewUtils {
         }
         FileUtils.setPermissions(file, mode, -1, -1);
     }
-
-    private static String saveCompressedImage(byte[] image, String baseDir, String pkgName,
-            String fileName) {
-        if (image == null) return null;
-        // Create relevant directories
-        String previewsDir = PreviewUtils.getPreviewsDir(baseDir);
-        String pkgDir = previewsDir + File.separator + pkgName;
-        String filePath = pkgDir + File.separator + fileName;
-        PreviewUtils.createDirIfNotExists(previewsDir);
-        PreviewUtils.createDirIfNotExists(pkgDir);
-
-        // Save blob
-        FileOutputStream outputStream;
-        final File pkgPreviewDir = new File(pkgDir);
-        try {
-            File outFile = new File(pkgPreviewDir, fileName);
-            outputStream = new FileOutputStream(outFile);
-            outputStream.write(image);
-            outputStream.close();
-            FileUtils.setPermissions(outFile,
-                    FileUtils.S_IRWXU | FileUtils.S_IRWXG | FileUtils.S_IROTH,
-                    -1, -1);
-        } catch (Exception e) {
-            Log.w(TAG, "Unable to save preview " + pkgName + File.separator + fileName, e);
-            filePath = null;
-        }
-
-        return filePath;
-    }
-
-    public static String compressAndSavePng(Bitmap bmp, String baseDir, String pkgName,
-            String fileName) {
-        byte[] image = BitmapUtils.getBitmapBlobPng(bmp);
-        return saveCompressedImage(image, baseDir, pkgName, fileName);
-    }
-
-    public static String compressAndSaveJpg(Bitmap bmp, String baseDir, String pkgName,
-            String fileName) {
-        byte[] image = BitmapUtils.getBitmapBlobJpg(bmp);
-        return saveCompressedImage(image, baseDir, pkgName, fileName);
-    }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.themes.provider.util;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Previews a theme ships pre-rendered in its assets, so that they can be imported rather than
+ * rendered on the device.  They are described by assets/previews/manifest.json:
+ *
+ * {
+ *   "density": 480,
+ *   "previews": [
+ *     { "key": "statusbar_background", "file": "statusbar_background.png" },
+ *     { "key": "wallpaper_preview", "component_id": 1, "file": "wallpaper1.jpg" },
+ *     { "key": "statusbar_clock_text_color", "value": "-1" }
+ *   ]
+ * }
+ *
+ * Keys are PreviewColumns keys, files are relative to assets/previews/ and already encoded, and
+ * previews that are not images have a value instead.  "density" is the screen density the
+ * images were made for, either for all of them or per preview.  Images made for a lower density
+ * than the device's are left out, so the previews they belong to are rendered instead.  Images
+ * that do not decode, or that are larger than the device's screen, are rejected when read.
+ */
+public class ShippedPreviews {
+    private static final String TAG = ShippedPreviews.class.getSimpleName();
+
+    private static final String PREVIEWS_DIR = "previews/";
+    private static final String MANIFEST = PREVIEWS_DIR + "manifest.json";
+    private static final int MAX_MANIFEST_BYTES = 64 * 1024;
+    // Shipped images larger than this are not read
+    private static final int MAX_IMAGE_BYTES = 4 * 1024 * 1024;
+
+    private static class Entry {
+        String key;
+        int componentId;
+        String file;
+        String value;
+    }
+
+    private final List<Entry> mEntries;
+    private final Set<String> mKeys = new HashSet<String>();
+    private final int mMaxDimension;
+
+    private ShippedPreviews(List<Entry> entries, int maxDimension) {
+        mEntries = entries;
+        mMaxDimension = maxDimension;
+        for (Entry entry : entries) {
+            mKeys.add(entry.key);
+        }
+    }
+
+    /**
+     * @param themeContext Context for the theme's package
+     * @param densityDpi The device's screen density
+     * @param maxDimension Largest width or height of a preview image, in pixels
+     * @return The theme's usable shipped previews, or null if it ships none or its manifest
+     *         is malformed
+     */
+    public static ShippedPreviews load(Context themeContext, int densityDpi,
+            int maxDimension) {
+        final byte[] manifest;
+        try {
+            manifest = read(themeContext.getAssets(), MANIFEST, MAX_MANIFEST_BYTES);
+        } catch (IOException e) {
+            // Nothing shipped, which is the common case
+            return null;
+        }
+        try {
+            JSONObject root = new JSONObject(new String(manifest, StandardCharsets.UTF_8));
+            final int defaultDensity = root.optInt("density", 0);
+            JSONArray previews = root.getJSONArray("previews");
+            List<Entry> entries = new ArrayList<Entry>(previews.length());
+            for (int i = 0; i < previews.length(); i++) {
+                JSONObject preview = previews.getJSONObject(i);
+                Entry entry = new Entry();
+                entry.key = preview.getString("key");
+                entry.componentId = preview.optInt("component_id", 0);
+                if (preview.has("value")) {
+                    entry.value = preview.getString("value");
+                } else {
+                    entry.file = preview.getString("file");
+                    if (preview.optInt("density", defaultDensity) < densityDpi) continue;
+                }
+                entries.add(entry);
+            }
+            return new ShippedPreviews(entries, maxDimension);
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring malformed preview manifest of "
+                    + themeContext.getPackageName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return True if there is a usable preview for every one of the keys
+     */
+    public boolean covers(String[] keys) {
+        for (String key : keys) {
+            if (!mKeys.contains(key)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the shipped previews for the given keys.
+     * @param out Receives the previews, images as encoded data
+     * @throws IOException If a preview can not be read or is not a valid image
+     */
+    public void read(AssetManager assets, String[] keys, List<PreviewItem> out)
+            throws IOException {
+        final Set<String> wanted = new HashSet<String>(Arrays.asList(keys));
+        for (Entry entry : mEntries) {
+            if (!wanted.contains(entry.key)) continue;
+            if (entry.file == null) {
+                out.add(PreviewItem.fromValue(entry.key, entry.componentId, entry.value));
+            } else {
+                final String path = PREVIEWS_DIR + entry.file;
+                final byte[] data = read(assets, path, MAX_IMAGE_BYTES);
+                checkImage(path, data);
+                out.add(PreviewItem.fromData(entry.key, entry.componentId, data));
+            }
+        }
+    }
+
+    /**
+     * Makes sure the data is an image that can be decoded, without decoding more than its
+     * header, and that it is no larger than a preview can be.
+     */
+    private void checkImage(String path, byte[] data) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException(path + " is not a valid image");
+        }
+        if (options.outWidth > mMaxDimension || options.outHeight > mMaxDimension) {
+            throw new IOException(path + " is " + options.outWidth + "x" + options.outHeight
+                    + ", larger than a preview");
+        }
+    }
+
+    private static byte[] read(AssetManager assets, String path, int maxBytes)
+            throws IOException {
+        // Assets stored uncompressed are read straight out of the APK, into a buffer of their
+        // exact size
+        AssetFileDescriptor afd = null;
+        try {
+            afd = assets.openFd(path);
+        } catch (FileNotFoundException e) {
+            // Compressed, or missing, which open() tells apart
+        }
+        if (afd != null) {
+            final long length = afd.getLength();
+            if (length > maxBytes) {
+                afd.close();
+                throw new IOException(path + " is larger than " + maxBytes + " bytes");
+            }
+            byte[] data = new byte[(int) length];
+            DataInputStream in = new DataInputStream(afd.createInputStream());
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+            return data;
+        }
+
+        InputStream in = assets.open(path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > maxBytes) {
+                    throw new IOException(path + " is larger than " + maxBytes + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
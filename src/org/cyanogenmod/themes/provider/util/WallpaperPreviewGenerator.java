@@ -24,8 +24,6 @@ import android.content.res.ThemeConfig;
 import android.graphics.Bitmap;
 import android.text.TextUtils;
 
-import cyanogenmod.providers.ThemesContract.PreviewColumns;
-
 import org.cyanogenmod.internal.util.ThemeUtils;
 import org.cyanogenmod.themes.provider.R;
 
@@ -47,91 +45,87 @@ public class WallpaperPreviewGenerator {
         mThumbnailSize = res.getDimensionPixelSize(R.dimen.wallpaper_thumbnail_size);
     }
 
+    /**
+     * Decodes the theme's wallpapers and returns their encoded previews and thumbnails.  Each
+     * wallpaper is encoded as soon as it is decoded so that only one full size preview bitmap is
+     * ever held at a time.
+     * @param themeInfo The theme to generate previews for or null for the system theme
+     */
     public WallpaperItems generateWallpaperPreviews(PackageInfo themeInfo)
             throws NameNotFoundException, IOException {
+        return generateWallpaperPreviews(themeInfo, themeInfo == null ? null
+                : mContext.createPackageContext(themeInfo.packageName, 0));
+    }
+
+    /**
+     * Same as {@link #generateWallpaperPreviews(PackageInfo)} but reuses an existing package
+     * context for the theme.
+     */
+    public WallpaperItems generateWallpaperPreviews(PackageInfo themeInfo, Context themeContext)
+            throws NameNotFoundException, IOException {
         WallpaperItems items = new WallpaperItems();
         WallpaperItem item = null;
         Bitmap preview = null;
-        String baseDir = mContext.getFilesDir().getAbsolutePath();
-        String pkgName;
         if (themeInfo == null) {
-            pkgName = ThemeConfig.SYSTEM_DEFAULT;
             Resources res = mContext.getPackageManager().getThemedResourcesForApplication("android",
                     ThemeConfig.SYSTEM_DEFAULT);
-            if (preview != null) {
-                preview.recycle();
-            }
             preview = BitmapUtils.decodeResource(res,
                     com.android.internal.R.drawable.default_wallpaper, mPreviewSize, mPreviewSize);
-            item = createWallpaperItems(0, baseDir, null, pkgName, preview, false);
+            item = createWallpaperItem(null, preview);
             if (item != null) {
                 items.wallpapers.add(item);
             }
         } else {
-            final Context themeContext = mContext.createPackageContext(themeInfo.packageName, 0);
             final AssetManager assets = themeContext.getAssets();
-            pkgName = themeInfo.packageName;
             // Get all wallpapers
             List<String> paths = ThemeUtils.getWallpaperPathList(assets);
-            int id = 0;
             for (String path : paths) {
                 if (!TextUtils.isEmpty(path)) {
-                    if (preview != null) {
-                        preview.recycle();
-                    }
                     preview = BitmapUtils.getBitmapFromAsset(themeContext, path,
                             mPreviewSize, mPreviewSize);
-                    item = createWallpaperItems(id, baseDir, path, pkgName, preview, false);
+                    item = createWallpaperItem(path, preview);
                     if (item != null) {
                         items.wallpapers.add(item);
-                        id++;
                     }
                 }
             }
             // Get the lockscreen
             String path = ThemeUtils.getLockscreenWallpaperPath(assets);
             if (!TextUtils.isEmpty(path)) {
-                if (preview != null) {
-                    preview.recycle();
-                }
                 preview = BitmapUtils.getBitmapFromAsset(themeContext, path,
                         mPreviewSize, mPreviewSize);
-                items.lockscreen = createWallpaperItems(0, baseDir, path, pkgName, preview, true);
+                items.lockscreen = createWallpaperItem(path, preview);
             }
         }
         return items;
     }
 
-    private WallpaperItem createWallpaperItems(int id, String baseDir, String assetPath,
-            String pkgName, Bitmap preview, boolean isLockWallpaper) {
+    private WallpaperItem createWallpaperItem(String assetPath, Bitmap preview) {
         if (TextUtils.isEmpty(assetPath) && preview == null) {
             return null;
         }
 
-        String componentID =  String.format("%03d", id);
         WallpaperItem item = new WallpaperItem();
-
         item.assetPath = assetPath;
         if (preview != null) {
-            String filePrefix = isLockWallpaper ? PreviewColumns.LOCK_WALLPAPER_PREVIEW :
-                    PreviewColumns.WALLPAPER_PREVIEW;
-            String fileName = filePrefix + componentID;
-            item.previewPath = PreviewUtils.compressAndSaveJpg(preview, baseDir, pkgName, fileName);
+            item.preview = BitmapUtils.getBitmapBlobJpg(preview);
             Bitmap thumbnail = Bitmap.createScaledBitmap(preview, mThumbnailSize, mThumbnailSize,
                     true);
-            filePrefix = isLockWallpaper ? PreviewColumns.LOCK_WALLPAPER_THUMBNAIL :
-                    PreviewColumns.WALLPAPER_THUMBNAIL;
-            fileName = filePrefix + componentID;
-            item.thumbnailPath = PreviewUtils.compressAndSavePng(thumbnail, baseDir, pkgName,
-                    fileName);
+            item.thumbnail = BitmapUtils.getBitmapBlobPng(thumbnail);
+            if (thumbnail != preview) {
+                thumbnail.recycle();
+            }
+            preview.recycle();
         }
         return item;
     }
 
     public class WallpaperItem {
         public String assetPath;
-        public String previewPath;
-        public String thumbnailPath;
+        // Encoded JPG preview
+        public byte[] preview;
+        // Encoded PNG thumbnail
+        public byte[] thumbnail;
     }
 
     public class WallpaperItems {